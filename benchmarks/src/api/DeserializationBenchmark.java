@@ -0,0 +1,89 @@
+package api;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserialization of the Data Lake hashes returned by the queries of DLTwin.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeserializationBenchmark {
+
+    private Map<String, String> snapshotHash;
+    private Map<String, String> packedSnapshotHash;
+    private Map<String, String> commandHash;
+    private Map<String, String> commandResultHash;
+
+    @Setup
+    public void setUp() {
+        snapshotHash = new HashMap<>();
+        snapshotHash.put("twinId", "MyBraccioArm");
+        snapshotHash.put("executionId", "benchmark");
+        snapshotHash.put("timestamp", "1500");
+        snapshotHash.put("whenProcessed", "1500");
+        snapshotHash.put("moving", "1");
+        ByteBuffer packed = ByteBuffer.allocate(42).order(ByteOrder.LITTLE_ENDIAN);
+        packed.put((byte) 1).putInt(1500).put((byte) 1);
+        for (String sequence : new String[] { "currentAngles", "targetAngles", "currentSpeeds" }) {
+            for (int i = 1; i <= 6; i++) {
+                double value = sequence.equals("currentSpeeds") ? 12.5 * i : 15.25 * i;
+                snapshotHash.put(sequence + "_" + i, value + "");
+                packed.putShort((short) Math.round(value * 100));
+            }
+        }
+        for (int i = 1; i <= 6; i++) {
+            snapshotHash.put("targetAngles_" + i, (15 * i) + "");
+        }
+        packedSnapshotHash = new HashMap<>();
+        packedSnapshotHash.put("twinId", "MyBraccioArm");
+        packedSnapshotHash.put("executionId", "benchmark");
+        packedSnapshotHash.put("timestamp", "1500");
+        packedSnapshotHash.put("whenProcessed", "1500");
+        packedSnapshotHash.put(OutputSnapshot.PACKED, new String(packed.array(), StandardCharsets.ISO_8859_1));
+
+        commandHash = new HashMap<>();
+        commandHash.put("twinId", "MyBraccioArm");
+        commandHash.put("executionId", "benchmark");
+        commandHash.put("name", "moveto");
+        commandHash.put("arguments", "0 90 90 90 90 10");
+        commandHash.put("commandId", "1");
+        commandHash.put("whenProcessed", "1500");
+        commandResultHash = new HashMap<>();
+        commandResultHash.put("twinId", "MyBraccioArm");
+        commandResultHash.put("executionId", "benchmark");
+        commandResultHash.put("commandId", "1");
+        commandResultHash.put("commandName", "moveto");
+        commandResultHash.put("commandArguments", "0 90 90 90 90 10");
+        commandResultHash.put("commandTimestamp", "1500");
+        commandResultHash.put("return", "true");
+        commandResultHash.put("timestamp", "2100");
+        commandResultHash.put("whenProcessed", "2100");
+    }
+
+    @Benchmark
+    public OutputSnapshot outputSnapshotFromHash() {
+        return OutputSnapshot.fromHash(snapshotHash);
+    }
+
+    @Benchmark
+    public OutputSnapshot outputSnapshotFromPackedHash() {
+        return OutputSnapshot.fromHash(packedSnapshotHash);
+    }
+
+    @Benchmark
+    public Command commandFromHashes() {
+        return Command.fromHashes(commandHash, commandResultHash);
+    }
+
+}
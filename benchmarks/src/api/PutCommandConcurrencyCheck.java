@@ -0,0 +1,110 @@
+package api;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Several clients putting commands for the same twin at the same time with DLTwin.putCommand. Checks that
+ * every command gets a different ID, is queued once, and is stored in a hash whose commandId matches its
+ * score in the queue. Run with "ant check-commands"; the number of clients and of commands per client can
+ * be passed as arguments (8 and 2000 by default).
+ * It needs a Redis server, given by the "redis.host" system property (localhost by default). It uses
+ * database 15 and only deletes the keys of its twin, and the execution ID and command counter if it
+ * created them.
+ */
+public class PutCommandConcurrencyCheck {
+
+    private static final int DATABASE = 15;
+    private static final String TWIN_ID = "ConcurrencyCheckArm";
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int commandsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(clients + 1);
+        JedisPool jedisPool = new JedisPool(poolConfig, System.getProperty("redis.host", "localhost"),
+                Protocol.DEFAULT_PORT, Protocol.DEFAULT_TIMEOUT, null, DATABASE);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        boolean createdExecution = false;
+        boolean createdCounter = false;
+        List<String> errors = new ArrayList<>();
+        try (Jedis jedis = jedisPool.getResource()) {
+            createdExecution = jedis.setnx("executionId", "concurrencyCheck") == 1;
+            createdCounter = !jedis.exists("commandCounter");
+            deleteTwinKeys(jedis);
+
+            List<Future<List<Integer>>> results = new ArrayList<>(clients);
+            for (int c = 0; c < clients; c++) {
+                results.add(executor.submit(() -> {
+                    List<Integer> ids = new ArrayList<>(commandsPerClient);
+                    try (DTDataLake dataLake = new DTDataLake(jedisPool)) {
+                        DLTwin twin = dataLake.forTwin(TWIN_ID);
+                        for (int i = 0; i < commandsPerClient; i++) {
+                            ids.add(twin.putCommand(TwinTarget.DIGITAL, "moveto", "0", "90", "90", "90", "90", "10"));
+                        }
+                    }
+                    return ids;
+                }));
+            }
+            Set<Integer> ids = new HashSet<>();
+            for (Future<List<Integer>> result : results) {
+                ids.addAll(result.get());
+            }
+
+            int expected = clients * commandsPerClient;
+            if (ids.size() != expected) {
+                errors.add(ids.size() + " distinct IDs for " + expected + " commands");
+            }
+            List<Tuple> queued = new ArrayList<>(jedis.zrangeWithScores("DTCommand:" + TWIN_ID + "_UNPROCESSED", 0, -1));
+            if (queued.size() != expected) {
+                errors.add(queued.size() + " queued commands for " + expected + " commands");
+            }
+            for (Tuple command : queued) {
+                String commandId = jedis.hget(command.getElement(), "commandId");
+                if (commandId == null || Integer.parseInt(commandId) != (int) command.getScore()) {
+                    errors.add(command.getElement() + " has commandId " + commandId
+                            + " but score " + (int) command.getScore());
+                }
+            }
+            System.out.println(clients + " clients, " + expected + " commands: " + ids.size() + " distinct IDs, "
+                    + queued.size() + " queued");
+
+            deleteTwinKeys(jedis);
+            if (createdExecution) {
+                jedis.del("executionId");
+            }
+            if (createdCounter) {
+                jedis.del("commandCounter");
+            }
+        } finally {
+            executor.shutdown();
+            jedisPool.close();
+        }
+        for (String error : errors.subList(0, Math.min(errors.size(), 10))) {
+            System.out.println("ERROR: " + error);
+        }
+        if (!errors.isEmpty()) {
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static void deleteTwinKeys(Jedis jedis) {
+        Set<String> keys = jedis.keys("DTCommand:" + TWIN_ID + "*");
+        if (!keys.isEmpty()) {
+            jedis.del(keys.toArray(new String[0]));
+        }
+    }
+
+}
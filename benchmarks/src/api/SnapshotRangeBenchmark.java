@@ -0,0 +1,109 @@
+package api;
+
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a range of output snapshots with DLTwin.getOutputSnapshotsInRange, e.g., 10 minutes of a twin
+ * at 100 ms resolution (6000 snapshots). The hashes are fetched in pipelined chunks of the given size; a
+ * chunk size of 1 takes one round trip per snapshot, as the range queries did before.
+ * Like TwinLanesBenchmark, this one needs a Redis server, given by the "redis.host" system property
+ * (localhost by default), so it only runs with "ant run -Dredis.benchmarks=true". It uses database 15, and
+ * only deletes the keys of its twin ("DTOutputSnapshot:BenchmarkArm:*").
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotRangeBenchmark {
+
+    private static final int DATABASE = 15;
+    private static final int TICK_PERIOD_MS = 100;
+    private static final String TWIN_ID = "BenchmarkArm";
+    private static final String EXECUTION_ID = "benchmark";
+    private static final String KEY_PATTERN = "DTOutputSnapshot:" + TWIN_ID + ":*";
+
+    @Param({ "600", "6000" })
+    public int snapshots;
+
+    @Param({ "1", "64", "256", "1024" })
+    public int chunkSize;
+
+    private JedisPool jedisPool;
+    private DTDataLake dataLake;
+    private DLTwin twin;
+
+    @Setup
+    public void setUp() {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(2);
+        jedisPool = new JedisPool(poolConfig, System.getProperty("redis.host", "localhost"),
+                Protocol.DEFAULT_PORT, Protocol.DEFAULT_TIMEOUT, null, DATABASE);
+        try (Jedis jedis = jedisPool.getResource()) {
+            deleteBenchmarkKeys(jedis);
+            String setId = "DTOutputSnapshot:" + TWIN_ID + ":" + EXECUTION_ID + "_HISTORY";
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < snapshots; i++) {
+                int timestamp = i * TICK_PERIOD_MS;
+                String key = "DTOutputSnapshot:" + TWIN_ID + ":" + EXECUTION_ID + ":" + timestamp;
+                Map<String, String> hash = new HashMap<>();
+                hash.put("twinId", TWIN_ID);
+                hash.put("executionId", EXECUTION_ID);
+                hash.put("timestamp", timestamp + "");
+                hash.put("whenProcessed", timestamp + "");
+                hash.put("moving", "1");
+                for (int servo = 1; servo <= 6; servo++) {
+                    hash.put("currentAngles_" + servo, (15.25 * servo) + "");
+                    hash.put("targetAngles_" + servo, (15 * servo) + "");
+                    hash.put("currentSpeeds_" + servo, (12.5 * servo) + "");
+                }
+                pipeline.hset(key, hash);
+                pipeline.zadd(setId, timestamp, key);
+            }
+            pipeline.sync();
+        }
+        dataLake = new DTDataLake(jedisPool);
+        dataLake.setFetchChunkSize(chunkSize);
+        twin = dataLake.forTwin(TWIN_ID).at(EXECUTION_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataLake.close();
+        try (Jedis jedis = jedisPool.getResource()) {
+            deleteBenchmarkKeys(jedis);
+        }
+        jedisPool.close();
+    }
+
+    private static void deleteBenchmarkKeys(Jedis jedis) {
+        ScanParams params = new ScanParams().match(KEY_PATTERN).count(1000);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> result = jedis.scan(cursor, params);
+            if (!result.getResult().isEmpty()) {
+                jedis.del(result.getResult().toArray(new String[0]));
+            }
+            cursor = result.getCursor();
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    }
+
+    @Benchmark
+    public List<OutputSnapshot> snapshotsInRange() {
+        return twin.getOutputSnapshotsInRange(TwinTarget.DIGITAL, 0, (snapshots - 1) * TICK_PERIOD_MS);
+    }
+
+}
@@ -0,0 +1,60 @@
+package digital.twin;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tzi.use.uml.ocl.value.BooleanValue;
+import org.tzi.use.uml.ocl.value.IntegerValue;
+import org.tzi.use.uml.ocl.value.RealValue;
+import org.tzi.use.uml.ocl.value.StringValue;
+import org.tzi.use.uml.ocl.value.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions between USE values and Redis strings for each attribute type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeTypeBenchmark {
+
+    private Value booleanValue;
+    private Value integerValue;
+    private Value realValue;
+    private Value stringValue;
+
+    @Setup
+    public void setUp() {
+        booleanValue = BooleanValue.TRUE;
+        integerValue = IntegerValue.valueOf(1500);
+        realValue = new RealValue(87.53125);
+        stringValue = new StringValue("MyBraccioArm");
+    }
+
+    @Benchmark
+    public void fromUseToRedisString(Blackhole bh) {
+        bh.consume(AttributeType.BOOLEAN.fromUseToRedisString(booleanValue));
+        bh.consume(AttributeType.INTEGER.fromUseToRedisString(integerValue));
+        bh.consume(AttributeType.REAL.fromUseToRedisString(realValue));
+        bh.consume(AttributeType.STRING.fromUseToRedisString(stringValue));
+    }
+
+    @Benchmark
+    public void fromRedisStringToObject(Blackhole bh) {
+        bh.consume(AttributeType.BOOLEAN.fromRedisStringToObject("1"));
+        bh.consume(AttributeType.INTEGER.fromRedisStringToObject("1500"));
+        bh.consume(AttributeType.REAL.fromRedisStringToObject("87.53125"));
+        bh.consume(AttributeType.STRING.fromRedisStringToObject("MyBraccioArm"));
+    }
+
+    @Benchmark
+    public void getScore(Blackhole bh) {
+        bh.consume(AttributeType.BOOLEAN.getScore("1"));
+        bh.consume(AttributeType.INTEGER.getScore("1500"));
+        bh.consume(AttributeType.REAL.getScore("87.53125"));
+    }
+
+}
@@ -0,0 +1,71 @@
+package digital.twin;
+
+import org.tzi.use.api.UseSystemApi;
+import org.tzi.use.parser.soil.SoilCompiler;
+import org.tzi.use.parser.use.USECompiler;
+import org.tzi.use.uml.mm.MModel;
+import org.tzi.use.uml.mm.ModelFactory;
+import org.tzi.use.uml.sys.MSystem;
+import org.tzi.use.uml.sys.MSystemException;
+import org.tzi.use.uml.sys.soil.MStatement;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Loads the digital twin USE model and its instantiation for the benchmarks, without the USE GUI.
+ * The model directory is given by the "use.model.dir" system property.
+ */
+final class BenchmarkModel {
+
+    private BenchmarkModel() { }
+
+    /**
+     * Compiles BraccioRobot.use and executes BraccioRobot.soil and Config.soil.
+     * @return A USE API instance for the resulting system.
+     * @throws IOException If the model files cannot be read.
+     * @throws MSystemException If the SOIL statements cannot be executed.
+     */
+    static UseSystemApi load() throws IOException, MSystemException {
+        Path modelDir = Paths.get(System.getProperty("use.model.dir", "../useModel"));
+        PrintWriter err = new PrintWriter(System.err, true);
+        MModel model;
+        try (InputStream in = new FileInputStream(modelDir.resolve("BraccioRobot.use").toFile())) {
+            model = USECompiler.compileSpecification(in, "BraccioRobot.use", err, new ModelFactory());
+        }
+        if (model == null) {
+            throw new IllegalStateException("Could not compile the USE model in " + modelDir);
+        }
+        MSystem system = new MSystem(model);
+        for (String file : new String[] { "BraccioRobot.soil", "Config.soil" }) {
+            for (String line : Files.readAllLines(modelDir.resolve(file))) {
+                line = line.trim();
+                if (line.startsWith("!")) {
+                    execute(system, line.substring(1));
+                }
+            }
+        }
+        return UseSystemApi.create(system, false);
+    }
+
+    /**
+     * Executes a SOIL statement.
+     * @param system The system to execute the statement in.
+     * @param statement The statement to execute, without the leading "!".
+     * @throws MSystemException If the statement cannot be executed.
+     */
+    static void execute(MSystem system, String statement) throws MSystemException {
+        MStatement compiled = SoilCompiler.compileStatement(system.model(), system.state(),
+                system.getVariableEnvironment(), statement, "<benchmark>", new PrintWriter(System.err, true), false);
+        if (compiled == null) {
+            throw new IllegalArgumentException("Invalid statement: " + statement);
+        }
+        system.execute(compiled);
+    }
+
+}
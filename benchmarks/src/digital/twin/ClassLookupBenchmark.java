@@ -0,0 +1,73 @@
+package digital.twin;
+
+import org.openjdk.jmh.annotations.*;
+import org.tzi.use.api.UseSystemApi;
+import org.tzi.use.uml.mm.MClass;
+import org.tzi.use.uml.sys.MObject;
+import org.tzi.use.uml.sys.MObjectState;
+import org.tzi.use.uml.sys.MSystemState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up the instances of a class in a model with many objects, e.g., the single
+ * OutputSnapshotMonitor among thousands of CommandResults. UseFacade.getObjectsOfClass reads the
+ * class-to-objects index of the system state; the scan checks the class of every object of the model,
+ * as the lookups did before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassLookupBenchmark {
+
+    private static final String LOOKED_UP_CLASS = "OutputSnapshotMonitor";
+
+    @Param({ "1000", "10000", "100000" })
+    public int objects;
+
+    private UseSystemApi api;
+    private DTUseFacade useApi;
+    private MClass lookedUpClass;
+
+    @Setup
+    public void setUp() throws Exception {
+        api = BenchmarkModel.load();
+        MSystemState state = api.getSystem().state();
+        MClass commandResult = api.getSystem().model().getClass("CommandResult");
+        for (int i = state.allObjects().size(); i < objects; i++) {
+            state.createObject(commandResult, "result" + i);
+        }
+        useApi = new DTUseFacade(api);
+        lookedUpClass = api.getSystem().model().getClass(LOOKED_UP_CLASS);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        useApi.shutdown();
+    }
+
+    @Benchmark
+    public List<MObjectState> getObjectsOfClass() {
+        return useApi.getObjectsOfClass(LOOKED_UP_CLASS);
+    }
+
+    @Benchmark
+    public List<MObjectState> scanAllObjects() {
+        return useApi.execute(() -> {
+            List<MObjectState> result = new ArrayList<>();
+            MSystemState state = api.getSystem().state();
+            for (MObject o : state.allObjects()) {
+                if (o.cls().allSupertypes().contains(lookedUpClass)) {
+                    result.add(o.state(state));
+                }
+            }
+            return result;
+        });
+    }
+
+}
@@ -0,0 +1,100 @@
+package digital.twin;
+
+import org.openjdk.jmh.annotations.*;
+import org.tzi.use.api.UseApiException;
+import org.tzi.use.api.UseSystemApi;
+import org.tzi.use.uml.sys.MObjectState;
+import plugin.DriverConfig;
+import utils.DerivedValueTracker;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving 1000 commands to the USE model, as done by InputManager.saveObjectsToUseModel, in model tasks of
+ * DriverConfig.COMMANDS_PER_MODEL_TASK commands, with and without 1000 CommandResults already in the
+ * model. With "tracked" updates, the DerivedValueTracker of the facade only updates the derived values
+ * affected by each task; with "full" updates, every derived value is recomputed after each command, as
+ * USE does after a SOIL statement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class DerivedValuesBenchmark {
+
+    private static final int COMMANDS = 1000;
+
+    @Param({ "0", "1000" })
+    public int commandResults;
+
+    @Param({ "tracked", "full" })
+    public String updates;
+
+    private DTUseFacade useApi;
+    private CommandManager manager;
+    private DerivedValueTracker fullUpdates;
+    private Map<String, String> hash;
+
+    @Setup
+    public void setUp() throws Exception {
+        UseSystemApi api = BenchmarkModel.load();
+        useApi = new DTUseFacade(api);
+        manager = new CommandManager(useApi);
+        fullUpdates = "full".equals(updates) ? new DerivedValueTracker(api.getSystem()) : null;
+        useApi.execute(() -> {
+            for (int i = 0; i < commandResults; i++) {
+                MObjectState result = useApi.createObject("CommandResult", "result" + i);
+                useApi.setAttribute(result, "twinId", "MyBraccioArm");
+            }
+            return null;
+        });
+        hash = new HashMap<>();
+        hash.put("twinId", "MyBraccioArm");
+        hash.put("executionId", "benchmark");
+        hash.put("name", "moveto");
+        hash.put("arguments", "0 90 90 90 90 10");
+        hash.put("commandId", "1");
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        useApi.shutdown();
+    }
+
+    /**
+     * Destroys the commands created by the last invocation, so the size of the model stays constant.
+     */
+    @TearDown(Level.Invocation)
+    public void destroyCommands() throws UseApiException {
+        useApi.execute(() -> {
+            for (MObjectState command : useApi.getObjectsOfClass("MoveToPositionCommand")) {
+                useApi.destroyObject(command);
+            }
+            return null;
+        });
+    }
+
+    @Benchmark
+    public int saveCommands() {
+        for (int from = 0; from < COMMANDS; from += DriverConfig.COMMANDS_PER_MODEL_TASK) {
+            int to = Math.min(from + DriverConfig.COMMANDS_PER_MODEL_TASK, COMMANDS);
+            int first = from;
+            useApi.execute(() -> {
+                for (int i = first; i < to; i++) {
+                    manager.saveOneObject("DTCommand:MyBraccioArm:benchmark:" + i, hash);
+                    if (fullUpdates != null) {
+                        fullUpdates.invalidateAll();
+                        fullUpdates.update();
+                    }
+                }
+                return null;
+            });
+        }
+        return COMMANDS;
+    }
+
+}
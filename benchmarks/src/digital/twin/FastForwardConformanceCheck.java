@@ -0,0 +1,151 @@
+package digital.twin;
+
+import org.tzi.use.api.UseSystemApi;
+import org.tzi.use.uml.mm.MAttribute;
+import org.tzi.use.uml.ocl.value.Value;
+import org.tzi.use.uml.sys.MObject;
+import org.tzi.use.uml.sys.MObjectState;
+import org.tzi.use.uml.sys.MSystem;
+import org.tzi.use.uml.sys.MSystemState;
+import utils.DerivedValueTracker;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the same scenarios on two systems, one advancing the clock with the SOIL operation <i>Clock.run</i>
+ * and the other with the FastForwardKernel, and checks that they end in the same state: the same output
+ * snapshots, and the same values (and value types) of the clock, the servos and the monitors. The
+ * scenarios cover idle and moving robots, frozen or not, from 1 to 1000 ticks. It also checks that the
+ * kernel refuses to run, leaving the model untouched, when a command is waiting to be executed.
+ * As in DTUseFacade, the derived values of both systems are updated after the clock is advanced.
+ * Run with "ant check-fast-forward"; it does not need a Redis server.
+ */
+public class FastForwardConformanceCheck {
+
+    private static final String[] SETUPS = {
+            "",
+            "robot.moveToPosition(Sequence{10,20,30,40,50,60}, 0)",
+            "robot.moveToPosition(Sequence{170,150,5,180,0,10}, 3.3)",
+            "robot.moveToPosition(Sequence{10,20,30,40,50,60}, 1)"
+    };
+    private static final int[] TICKS = { 1, 7, 250, 1000 };
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        for (String setup : SETUPS) {
+            for (int ticks : TICKS) {
+                for (boolean frozen : new boolean[] { false, true }) {
+                    UseSystemApi soil = load(setup, frozen);
+                    UseSystemApi kernel = load(setup, frozen);
+                    BenchmarkModel.execute(soil.getSystem(), "ck.run(" + ticks + ")");
+                    new DerivedValueTracker(soil.getSystem()).update();
+                    boolean ran = runKernel(kernel, ticks);
+                    String expected = dump(soil.getSystem());
+                    String actual = dump(kernel.getSystem());
+                    boolean same = ran && expected.equals(actual);
+                    System.out.println((same ? "SAME " : "DIFF ") + "setup='" + setup + "' ticks=" + ticks
+                            + " frozen=" + frozen + (ran ? "" : " (the kernel did not run)"));
+                    if (!same) {
+                        failures++;
+                        printFirstDifference(expected, actual);
+                    }
+                }
+            }
+        }
+
+        UseSystemApi pending = BenchmarkModel.load();
+        BenchmarkModel.execute(pending.getSystem(), "new MoveToPositionCommand('c1')");
+        BenchmarkModel.execute(pending.getSystem(), "c1.isProcessed := false");
+        new DerivedValueTracker(pending.getSystem()).update();
+        String before = dump(pending.getSystem());
+        boolean ran = runKernel(pending, 5);
+        boolean untouched = !ran && before.equals(dump(pending.getSystem()));
+        System.out.println((untouched ? "SAME " : "DIFF ") + "pending command: the kernel "
+                + (ran ? "ran" : "refused to run"));
+        if (!untouched) {
+            failures++;
+        }
+
+        if (failures > 0) {
+            System.out.println("ERROR: " + failures + " scenario(s) differ");
+            System.exit(1);
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+
+    private static UseSystemApi load(String setup, boolean frozen) throws Exception {
+        UseSystemApi api = BenchmarkModel.load();
+        BenchmarkModel.execute(api.getSystem(), "ck.run(3)");
+        if (!setup.isEmpty()) {
+            BenchmarkModel.execute(api.getSystem(), setup);
+        }
+        BenchmarkModel.execute(api.getSystem(), "ck.run(2)");
+        if (frozen) {
+            BenchmarkModel.execute(api.getSystem(), "robot.isFrozen := true");
+        }
+        return api;
+    }
+
+    private static boolean runKernel(UseSystemApi api, int ticks) throws Exception {
+        MSystem system = api.getSystem();
+        DerivedValueTracker derivedValues = new DerivedValueTracker(system);
+        boolean ran = new FastForwardKernel(api, derivedValues)
+                .run(system.state().objectByName("ck").state(system.state()), ticks);
+        derivedValues.update();
+        return ran;
+    }
+
+    /**
+     * Describes the output snapshots, in timestamp order, and the clock, servos and monitors of a system.
+     * @param system The system to describe.
+     * @return One line per object.
+     */
+    private static String dump(MSystem system) {
+        MSystemState state = system.state();
+        List<MObjectState> snapshots = new ArrayList<>();
+        for (MObject snapshot : state.objectsOfClass(system.model().getClass("OutputBraccioSnapshot"))) {
+            snapshots.add(snapshot.state(state));
+        }
+        snapshots.sort(Comparator.comparing(snapshot -> snapshot.attributeValue("timestamp").toString(),
+                Comparator.comparingInt(Integer::parseInt)));
+        StringBuilder result = new StringBuilder();
+        for (MObjectState snapshot : snapshots) {
+            appendAttributes(result, snapshot);
+        }
+        for (MObject object : state.allObjects()) {
+            String className = object.cls().name();
+            if (className.equals("Servo") || className.equals("Clock") || className.endsWith("Monitor")) {
+                result.append(object.name()).append(' ');
+                appendAttributes(result, object.state(state));
+            }
+        }
+        return result.toString();
+    }
+
+    private static void appendAttributes(StringBuilder result, MObjectState objstate) {
+        for (MAttribute attribute : objstate.object().cls().allAttributes()) {
+            Value value = objstate.attributeValue(attribute);
+            result.append(attribute.name()).append('=').append(value)
+                    .append('/').append(value.getClass().getSimpleName()).append(' ');
+        }
+        result.append('\n');
+    }
+
+    private static void printFirstDifference(String expected, String actual) {
+        String[] expectedLines = expected.split("\n");
+        String[] actualLines = actual.split("\n");
+        for (int i = 0; i < Math.max(expectedLines.length, actualLines.length); i++) {
+            String expectedLine = i < expectedLines.length ? expectedLines[i] : "(none)";
+            String actualLine = i < actualLines.length ? actualLines[i] : "(none)";
+            if (!expectedLine.equals(actualLine)) {
+                System.out.println("  SOIL:   " + expectedLine);
+                System.out.println("  kernel: " + actualLine);
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package digital.twin;
+
+import org.openjdk.jmh.annotations.*;
+import org.tzi.use.api.UseApiException;
+import org.tzi.use.uml.sys.MObjectState;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserialization of commands from Redis hashes into the USE model, as done by
+ * InputManager.saveObjectsToUseModel. The created commands are destroyed after each batch so the
+ * size of the model stays constant.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InputManagerBenchmark {
+
+    private static final int OBJECTS_PER_BATCH = 100;
+
+    private DTUseFacade useApi;
+    private CommandManager manager;
+    private Map<String, String> hash;
+
+    @Setup
+    public void setUp() throws Exception {
+        useApi = new DTUseFacade(BenchmarkModel.load());
+        manager = new CommandManager(useApi);
+        hash = new HashMap<>();
+        hash.put("twinId", "MyBraccioArm");
+        hash.put("executionId", "benchmark");
+        hash.put("name", "moveto");
+        hash.put("arguments", "0 90 90 90 90 10");
+        hash.put("commandId", "1");
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        useApi.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS_PER_BATCH)
+    public int saveOneObject() throws UseApiException {
+        return useApi.execute(() -> {
+            for (int i = 0; i < OBJECTS_PER_BATCH; i++) {
+                manager.saveOneObject("DTCommand:MyBraccioArm:benchmark:" + i, hash);
+            }
+            int created = 0;
+            for (MObjectState command : useApi.getObjectsOfClass("MoveToPositionCommand")) {
+                useApi.destroyObject(command);
+                created++;
+            }
+            return created;
+        });
+    }
+
+}
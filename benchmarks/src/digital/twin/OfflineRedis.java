@@ -0,0 +1,152 @@
+package digital.twin;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisSocketFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Jedis client that does not need a Redis server: every command sent is discarded, and every reply
+ * is the integer 1. This is the reply of all the writes queued by the managers (HSET, ZADD, ZREM, DEL),
+ * so pipelines can be synced as usual.
+ */
+final class OfflineRedis {
+
+    private static final byte[] REPLY = ":1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private OfflineRedis() { }
+
+    /**
+     * Creates a Jedis client connected to a fake socket.
+     * @return The Jedis client.
+     */
+    static Jedis connect() {
+        return new Jedis(new OfflineSocketFactory());
+    }
+
+    private static class OfflineSocket extends Socket {
+
+        private final InputStream input = new InputStream() {
+            private int position = 0;
+
+            @Override
+            public int read() {
+                byte result = REPLY[position];
+                position = (position + 1) % REPLY.length;
+                return result;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                for (int i = 0; i < length; i++) {
+                    buffer[offset + i] = (byte) read();
+                }
+                return length;
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) { }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) { }
+        };
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isBound() {
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return false;
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) { }
+
+        @Override
+        public synchronized void close() { }
+
+    }
+
+    private static class OfflineSocketFactory implements JedisSocketFactory {
+
+        @Override
+        public Socket createSocket() {
+            return new OfflineSocket();
+        }
+
+        @Override
+        public void updateHostAndPort(HostAndPort hostAndPort) { }
+
+        @Override
+        public String getDescription() {
+            return "offline";
+        }
+
+        @Override
+        public String getHost() {
+            return "offline";
+        }
+
+        @Override
+        public void setHost(String host) { }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public void setPort(int port) { }
+
+        @Override
+        public int getConnectionTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setConnectionTimeout(int connectionTimeout) { }
+
+        @Override
+        public int getSoTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setSoTimeout(int soTimeout) { }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package digital.twin;
+
+import org.openjdk.jmh.annotations.*;
+import org.tzi.use.api.UseSystemApi;
+import org.tzi.use.uml.sys.MObjectState;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of output snapshots from the USE model to a Redis pipeline, as done by
+ * OutputManager.saveBatch, against an offline Redis client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputManagerBenchmark {
+
+    private static final int OBJECTS_PER_BATCH = 100;
+
+    private DTUseFacade useApi;
+    private OutputSnapshotsManager manager;
+    private MObjectState snapshot;
+    private Jedis jedis;
+
+    @Setup
+    public void setUp() throws Exception {
+        UseSystemApi api = BenchmarkModel.load();
+        BenchmarkModel.execute(api.getSystem(), "robot.executionId := 'benchmark'");
+        BenchmarkModel.execute(api.getSystem(), "robot.moveToPosition(Sequence{10,20,30,40,50,60}, 1)");
+        BenchmarkModel.execute(api.getSystem(), "ck.run(5)");
+        useApi = new DTUseFacade(api);
+        manager = new OutputSnapshotsManager(useApi);
+        List<MObjectState> snapshots = useApi.getObjectsOfClass("OutputBraccioSnapshot");
+        snapshot = snapshots.get(snapshots.size() - 1);
+        jedis = OfflineRedis.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        jedis.close();
+        useApi.shutdown();
+    }
+
+    /**
+     * Queues the writes of a batch of snapshots in a pipeline, without sending them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS_PER_BATCH)
+    public Pipeline saveOneObject() {
+        Pipeline pipeline = jedis.pipelined();
+        useApi.execute(() -> {
+            for (int i = 0; i < OBJECTS_PER_BATCH; i++) {
+                manager.saveOneObject(pipeline, snapshot, i);
+            }
+            return null;
+        });
+        return pipeline;
+    }
+
+    /**
+     * Queues the writes of a batch of snapshots in a pipeline, sends them and reads the replies.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS_PER_BATCH)
+    public List<Object> saveOneObjectAndSync() {
+        Pipeline pipeline = saveOneObject();
+        return pipeline.syncAndReturnAll();
+    }
+
+}
@@ -0,0 +1,159 @@
+package digital.twin;
+
+import org.openjdk.jmh.annotations.*;
+import org.tzi.use.api.UseApiException;
+import org.tzi.use.api.UseSystemApi;
+import org.tzi.use.uml.sys.MObjectState;
+import plugin.DriverConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intake of commands for several robots in one model, as done by InPubService and the command lanes of
+ * DTPubSub: the commands are claimed from the data lake, then the lane of each twin saves its commands to
+ * the USE model, and the lanes of different twins run in parallel. The same number of commands is sent
+ * in every invocation, spread among the robots.
+ * Unlike the other benchmarks, this one needs a Redis server, given by the "redis.host" system property
+ * (localhost by default), so it only runs with "ant run -Dredis.benchmarks=true". It uses database 15, and
+ * only deletes the keys of its twins ("DTCommand:BenchmarkArm*").
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TwinLanesBenchmark {
+
+    private static final int COMMANDS_PER_INVOCATION = 256;
+    private static final int DATABASE = 15;
+    private static final String KEY_PATTERN = "DTCommand:BenchmarkArm*";
+
+    @Param({ "1", "8", "32" })
+    public int robots;
+
+    private DTUseFacade useApi;
+    private CommandManager manager;
+    private JedisPool jedisPool;
+    private ExecutorService lanes;
+    private int commandCounter;
+
+    @Setup
+    public void setUp() throws Exception {
+        UseSystemApi api = BenchmarkModel.load();
+        BenchmarkModel.execute(api.getSystem(), "robot.twinId := 'BenchmarkArm1'");
+        for (int i = 2; i <= robots; i++) {
+            BenchmarkModel.execute(api.getSystem(), "new BraccioRobot('robot" + i + "')");
+            BenchmarkModel.execute(api.getSystem(), "robot" + i + ".twinId := 'BenchmarkArm" + i + "'");
+        }
+        useApi = new DTUseFacade(api);
+        manager = new CommandManager(useApi);
+        for (MObjectState robot : useApi.getObjectsOfClass("BraccioRobot")) {
+            manager.addTwin(useApi.getStringAttribute(robot, "twinId"));
+        }
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(DriverConfig.NUM_SUBSCRIBER_POOL_THREADS + 1);
+        jedisPool = new JedisPool(poolConfig, System.getProperty("redis.host", "localhost"),
+                Protocol.DEFAULT_PORT, Protocol.DEFAULT_TIMEOUT, null, DATABASE);
+        try (Jedis jedis = jedisPool.getResource()) {
+            deleteBenchmarkKeys(jedis);
+        }
+        lanes = Executors.newFixedThreadPool(DriverConfig.NUM_SUBSCRIBER_POOL_THREADS);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        lanes.shutdown();
+        try (Jedis jedis = jedisPool.getResource()) {
+            deleteBenchmarkKeys(jedis);
+        }
+        jedisPool.close();
+        useApi.shutdown();
+    }
+
+    private static void deleteBenchmarkKeys(Jedis jedis) {
+        ScanParams params = new ScanParams().match(KEY_PATTERN).count(1000);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> result = jedis.scan(cursor, params);
+            if (!result.getResult().isEmpty()) {
+                jedis.del(result.getResult().toArray(new String[0]));
+            }
+            cursor = result.getCursor();
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+    }
+
+    /**
+     * Puts the commands of the next invocation in the data lake, as done by DLTwin.putCommand.
+     */
+    @Setup(Level.Invocation)
+    public void putCommands() {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            List<String> twinIds = manager.getTwinIds();
+            for (int i = 0; i < COMMANDS_PER_INVOCATION; i++) {
+                String twinId = twinIds.get(i % twinIds.size());
+                int commandId = ++commandCounter;
+                String key = "DTCommand:" + twinId + ":benchmark:" + commandId;
+                Map<String, String> hash = new HashMap<>();
+                hash.put("twinId", twinId);
+                hash.put("executionId", "benchmark");
+                hash.put("name", "moveto");
+                hash.put("arguments", "0 90 90 90 90 10");
+                hash.put("commandId", commandId + "");
+                pipeline.hset(key, hash);
+                pipeline.zadd(manager.getQueueKey(twinId, "UNPROCESSED"), commandId, key);
+            }
+            pipeline.sync();
+        }
+    }
+
+    /**
+     * Destroys the commands created by the last invocation, so the size of the model stays constant.
+     */
+    @TearDown(Level.Invocation)
+    public void destroyCommands() throws UseApiException {
+        useApi.execute(() -> {
+            for (MObjectState command : useApi.getObjectsOfClass("MoveToPositionCommand")) {
+                useApi.destroyObject(command);
+            }
+            return null;
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS_PER_INVOCATION)
+    public int claimAndSaveCommands() throws Exception {
+        List<String> twinIds;
+        try (Jedis jedis = jedisPool.getResource()) {
+            twinIds = manager.claimNewObjects(jedis, 1, DriverConfig.MAX_CLAIMED_COMMANDS);
+        }
+        List<Future<?>> results = new ArrayList<>(twinIds.size());
+        for (String twinId : twinIds) {
+            results.add(lanes.submit(() -> {
+                try (Jedis jedis = jedisPool.getResource()) {
+                    manager.saveObjectsToUseModel(jedis, twinId);
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        return twinIds.size();
+    }
+
+}
@@ -0,0 +1,298 @@
+package api;
+
+import redis.clients.jedis.JedisPool;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe API to access the Data Lake. Unlike DTDataLake, which keeps a single connection, each
+ * operation borrows a connection of the pool of its DTDLConnection and returns it when it ends, so
+ * several threads can query the Data Lake at the same time, up to the size of the pool. Each operation
+ * also has an asynchronous variant, which runs it in a thread of this object.
+ * The settings of the Data Lake (the fetch chunk size and the cache) are shared by all the operations.
+ */
+@SuppressWarnings("unused")
+public class ConcurrentDataLake implements Closeable {
+
+    private final JedisPool pool;
+    private final ExecutorService executor;
+    private volatile int fetchChunkSize;
+    private volatile ObjectCache cache;
+
+    ConcurrentDataLake(JedisPool pool, int threads) {
+        this.pool = pool;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ConcurrentDataLake-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.fetchChunkSize = DTDataLake.DEFAULT_FETCH_CHUNK_SIZE;
+        this.cache = null;
+    }
+
+    /**
+     * Stops the threads of the asynchronous operations. The operations already submitted are completed.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Runs an operation with a Data Lake that uses a connection borrowed from the pool. The operation must
+     * not keep the Data Lake or its DLTwin objects, nor return streams of them, since the connection is
+     * returned to the pool when the operation ends.
+     * @param operation The operation to run.
+     * @return The result of the operation.
+     */
+    public <T> T execute(Function<DTDataLake, T> operation) {
+        try (DTDataLake dataLake = new DTDataLake(pool.getResource(), fetchChunkSize, cache)) {
+            return operation.apply(dataLake);
+        }
+    }
+
+    /**
+     * Runs an operation asynchronously with a Data Lake that uses a connection borrowed from the pool
+     * (see <i>execute</i>).
+     * @param operation The operation to run.
+     * @return A future with the result of the operation.
+     */
+    public <T> CompletableFuture<T> executeAsync(Function<DTDataLake, T> operation) {
+        return supplyAsync(() -> execute(operation));
+    }
+
+    /**
+     * Runs an operation on a twin in the current execution, with a connection borrowed from the pool.
+     * The current execution is only read if the operation needs it (see DTDataLake.forTwin).
+     * @param twinId The ID of the twin to query.
+     * @param operation The operation to run (see <i>execute</i>).
+     * @return The result of the operation.
+     */
+    public <T> T executeForTwin(String twinId, Function<DLTwin, T> operation) {
+        return execute(dataLake -> operation.apply(dataLake.forTwin(twinId)));
+    }
+
+    /**
+     * Runs an operation on a twin in the current execution asynchronously (see <i>executeForTwin</i>).
+     * @param twinId The ID of the twin to query.
+     * @param operation The operation to run.
+     * @return A future with the result of the operation.
+     */
+    public <T> CompletableFuture<T> executeForTwinAsync(String twinId, Function<DLTwin, T> operation) {
+        return supplyAsync(() -> executeForTwin(twinId, operation));
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+
+    // Settings
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the number of hashes requested in each pipelined chunk when reading ranges of objects
+     * (see DTDataLake.setFetchChunkSize).
+     * @param fetchChunkSize The chunk size.
+     */
+    public void setFetchChunkSize(int fetchChunkSize) {
+        if (fetchChunkSize <= 0) {
+            throw new IllegalArgumentException("fetchChunkSize must be positive");
+        }
+        this.fetchChunkSize = fetchChunkSize;
+    }
+
+    /**
+     * Enables a cache of the objects that no longer change, shared by all the operations
+     * (see DTDataLake.setCacheSize). Setting a new size clears it.
+     * @param maxEntries The maximum number of objects to keep, or 0 to disable the cache (the default).
+     */
+    public void setCacheSize(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must be non-negative");
+        }
+        cache = maxEntries > 0 ? new ObjectCache(maxEntries) : null;
+    }
+
+    /**
+     * Returns the number of objects found in the cache since it was enabled.
+     * @return The number of cache hits.
+     */
+    public long getCacheHits() {
+        ObjectCache current = cache;
+        return current != null ? current.getHits() : 0;
+    }
+
+    /**
+     * Returns the number of objects looked up in the cache and read from Redis since it was enabled.
+     * @return The number of cache misses.
+     */
+    public long getCacheMisses() {
+        ObjectCache current = cache;
+        return current != null ? current.getMisses() : 0;
+    }
+
+    // Time
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Gets the current time for the Physical Twin.
+     * @return The value of the Physical Twin's clock.
+     */
+    public int getPTTime() {
+        return execute(DTDataLake::getPTTime);
+    }
+
+    /**
+     * Gets the current time for the Physical Twin asynchronously (see <i>getPTTime</i>).
+     * @return A future with the value of the Physical Twin's clock.
+     */
+    public CompletableFuture<Integer> getPTTimeAsync() {
+        return executeAsync(DTDataLake::getPTTime);
+    }
+
+    /**
+     * Gets the current time for the Digital Twin.
+     * @return The value of the Digital Twin's clock.
+     */
+    public int getDTTime() {
+        return execute(DTDataLake::getDTTime);
+    }
+
+    /**
+     * Gets the current time for the Digital Twin asynchronously (see <i>getDTTime</i>).
+     * @return A future with the value of the Digital Twin's clock.
+     */
+    public CompletableFuture<Integer> getDTTimeAsync() {
+        return executeAsync(DTDataLake::getDTTime);
+    }
+
+    /**
+     * Advances the Digital Twin's time.
+     * @param amount The number of milliseconds to advance.
+     */
+    public void advanceDTTime(int amount) {
+        execute(dataLake -> {
+            dataLake.advanceDTTime(amount);
+            return null;
+        });
+    }
+
+    /**
+     * Advances the Digital Twin's time asynchronously (see <i>advanceDTTime</i>).
+     * @param amount The number of milliseconds to advance.
+     * @return A future completed once the time has been advanced.
+     */
+    public CompletableFuture<Void> advanceDTTimeAsync(int amount) {
+        return executeAsync(dataLake -> {
+            dataLake.advanceDTTime(amount);
+            return null;
+        });
+    }
+
+    /**
+     * Returns the ID of the current execution.
+     * @return The ID of the current execution.
+     */
+    public String getCurrentExecutionId() {
+        return execute(DTDataLake::getCurrentExecutionId);
+    }
+
+    /**
+     * Returns the ID of the current execution asynchronously (see <i>getCurrentExecutionId</i>).
+     * @return A future with the ID of the current execution.
+     */
+    public CompletableFuture<String> getCurrentExecutionIdAsync() {
+        return executeAsync(DTDataLake::getCurrentExecutionId);
+    }
+
+    // Commands
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Puts a command for a twin in the Data Lake (see DLTwin.putCommand).
+     * @param twinId The ID of the twin.
+     * @param target Whether to target the Physical Twin, the Digital Twin, or both.
+     * @param command The name of the command.
+     * @param args The arguments of the command.
+     * @return The ID of the command.
+     */
+    public int putCommand(String twinId, TwinTarget target, String command, String... args) {
+        return executeForTwin(twinId, twin -> twin.putCommand(target, command, args));
+    }
+
+    /**
+     * Puts a command for a twin in the Data Lake asynchronously (see <i>putCommand</i>).
+     * @param twinId The ID of the twin.
+     * @param target Whether to target the Physical Twin, the Digital Twin, or both.
+     * @param command The name of the command.
+     * @param args The arguments of the command.
+     * @return A future with the ID of the command.
+     */
+    public CompletableFuture<Integer> putCommandAsync(
+            String twinId, TwinTarget target, String command, String... args) {
+        return executeForTwinAsync(twinId, twin -> twin.putCommand(target, command, args));
+    }
+
+    /**
+     * Returns a command of a twin in the current execution (see DLTwin.getCommand).
+     * @param twinId The ID of the twin.
+     * @param target The twin whose command to retrieve.
+     * @param commandId The ID of the command.
+     * @return The command, or null if it does not exist.
+     */
+    public Command getCommand(String twinId, TwinTarget target, int commandId) {
+        return executeForTwin(twinId, twin -> twin.getCommand(target, commandId));
+    }
+
+    /**
+     * Returns a command of a twin in the current execution asynchronously (see <i>getCommand</i>).
+     * @param twinId The ID of the twin.
+     * @param target The twin whose command to retrieve.
+     * @param commandId The ID of the command.
+     * @return A future with the command, or null if it does not exist.
+     */
+    public CompletableFuture<Command> getCommandAsync(String twinId, TwinTarget target, int commandId) {
+        return executeForTwinAsync(twinId, twin -> twin.getCommand(target, commandId));
+    }
+
+    // Snapshots
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the output snapshots of a twin in the current execution generated during a time interval
+     * (see DLTwin.getOutputSnapshotsInRange).
+     * @param twinId The ID of the twin.
+     * @param target The twin whose snapshots to retrieve.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @return A list of snapshots.
+     */
+    public List<OutputSnapshot> getOutputSnapshotsInRange(
+            String twinId, TwinTarget target, int timestampFrom, int timestampTo) {
+        return executeForTwin(twinId, twin -> twin.getOutputSnapshotsInRange(target, timestampFrom, timestampTo));
+    }
+
+    /**
+     * Returns the output snapshots of a twin in the current execution generated during a time interval
+     * asynchronously (see <i>getOutputSnapshotsInRange</i>).
+     * @param twinId The ID of the twin.
+     * @param target The twin whose snapshots to retrieve.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @return A future with a list of snapshots.
+     */
+    public CompletableFuture<List<OutputSnapshot>> getOutputSnapshotsInRangeAsync(
+            String twinId, TwinTarget target, int timestampFrom, int timestampTo) {
+        return executeForTwinAsync(twinId,
+                twin -> twin.getOutputSnapshotsInRange(target, timestampFrom, timestampTo));
+    }
+
+}
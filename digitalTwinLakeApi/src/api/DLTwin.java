@@ -1,25 +1,70 @@
 package api;
 
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.util.SafeEncoder;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @SuppressWarnings("unused")
 public class DLTwin {
 
+    // Stores a command with ID ARGV[5], name ARGV[3] and arguments ARGV[4] for twin ARGV[2] in the hashes
+    // KEYS[n + 2..] and queues each of them in the sorted set KEYS[i - n] (KEYS[2..n + 1]), as long as the
+    // current execution ID (KEYS[1]) is still ARGV[1]. Every key is declared, so the command is stored
+    // atomically in any Redis deployment. Returns the number of queues.
+    private static final RedisScript PUT_COMMAND_SCRIPT = new RedisScript(
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return redis.error_reply('No execution is running') end\n"
+            + "local n = (#KEYS - 1) / 2\n"
+            + "for i = n + 2, #KEYS do\n"
+            + "  redis.call('HSET', KEYS[i], 'twinId', ARGV[2], 'executionId', ARGV[1],\n"
+            + "      'name', ARGV[3], 'arguments', ARGV[4], 'commandId', ARGV[5])\n"
+            + "  redis.call('ZADD', KEYS[i - n], ARGV[5], KEYS[i])\n"
+            + "end\n"
+            + "return n\n");
+
     private final String twinId;
-    private final String executionId;
+    private String executionId;
+    private boolean executionIdResolved;
     private final Jedis jedis;
     private final DTDataLake dataLake;
 
     private DLTwin(Jedis jedis, DTDataLake dataLake, String twinId, String executionId) {
         this.twinId = twinId;
         this.executionId = executionId;
+        this.executionIdResolved = true;
         this.jedis = jedis;
         this.dataLake = dataLake;
     }
     DLTwin(Jedis jedis, DTDataLake dataLake, String twinId) {
-        this(jedis, dataLake, twinId, dataLake.getCurrentExecutionId());
+        this.twinId = twinId;
+        this.executionId = null;
+        this.executionIdResolved = false;
+        this.jedis = jedis;
+        this.dataLake = dataLake;
+    }
+
+    /**
+     * Returns the execution to query in. The current execution is only read from the Data Lake by the
+     * first query that needs it, so operations that do not, such as putCommand, cost no extra round trips.
+     * @return The ID of the execution.
+     */
+    private String getExecutionId() {
+        if (!executionIdResolved) {
+            executionId = dataLake.getCurrentExecutionId();
+            executionIdResolved = true;
+        }
+        return executionId;
     }
 
     /**
@@ -35,36 +80,56 @@ public class DLTwin {
     // --------------------------------------------------------------------------------------------
 
     /**
-     * Puts a command in the Data Lake.
+     * Puts a command in the Data Lake, in the current execution. The command ID is reserved by incrementing
+     * the command counter, so concurrent clients never share an ID, and the command is then stored and
+     * queued atomically.
+     * Unlike in earlier versions, which stored the command with an executionId of "null", the command is
+     * not stored if no execution is running (or the execution ends while it is being put).
      * @param target Whether to target the Physical Twin, the Digital Twin, or both.
      * @param command The name of the command to send.
      * @param args The arguments to send.
      * @return The ID of the new command.
+     * @throws IllegalStateException If no execution is running.
      */
     public int putCommand(TwinTarget target, String command, String... args) {
-        Map<String, String> hash = new HashMap<>();
-        incrCommandCounter();
         StringJoiner argJoiner = new StringJoiner(" ", "", "");
         for (String arg : args) {
             argJoiner.add(arg);
         }
-        String execId = dataLake.getCurrentExecutionId();
-        int commandId = dataLake.getCommandCounter();
+        Pipeline pipeline = jedis.pipelined();
+        Response<String> currentExecutionId = pipeline.get("executionId");
+        Response<Long> counter = pipeline.incr("commandCounter");
+        pipeline.sync();
+        String execId = currentExecutionId.get();
+        if (execId == null) {
+            throw new IllegalStateException("No execution is running");
+        }
+        int commandId = counter.get().intValue();
         String objectId = twinId + ":" + execId + ":" + commandId;
 
-        hash.put("twinId", twinId);
-        hash.put("executionId", dataLake.getCurrentExecutionId());
-        hash.put("name", command);
-        hash.put("arguments", argJoiner.toString());
-        hash.put("commandId", commandId + "");
-
+        List<String> queues = new ArrayList<>(2);
+        List<String> hashes = new ArrayList<>(2);
         if (target.isPhysical) {
-            jedis.hset("PTCommand:" + objectId, hash);
-            jedis.zadd("PTCommand_UNPROCESSED", commandId, "PTCommand:" + objectId);
+            queues.add("PTCommand_UNPROCESSED");
+            hashes.add("PTCommand:" + objectId);
         }
         if (target.isDigital) {
-            jedis.hset("DTCommand:" + objectId, hash);
-            jedis.zadd("DTCommand_UNPROCESSED", commandId, "DTCommand:" + objectId);
+            // Digital Twin commands are queued per twin, so that the connector handles each twin separately
+            queues.add("DTCommand:" + twinId + "_UNPROCESSED");
+            hashes.add("DTCommand:" + objectId);
+        }
+        List<String> keys = new ArrayList<>(1 + queues.size() + hashes.size());
+        keys.add("executionId");
+        keys.addAll(queues);
+        keys.addAll(hashes);
+        try {
+            PUT_COMMAND_SCRIPT.eval(jedis, keys,
+                    Arrays.asList(execId, twinId, command, argJoiner.toString(), commandId + ""));
+        } catch (JedisDataException ex) {
+            if (ex.getMessage() != null && ex.getMessage().contains("No execution is running")) {
+                throw new IllegalStateException("No execution is running", ex);
+            }
+            throw ex;
         }
         return commandId;
     }
@@ -72,25 +137,50 @@ public class DLTwin {
     public Command getCommand(TwinTarget target, int commandId) {
         target.requireOneTwin();
         String commandObjId = target.getPrefix() + "Command:"
-                + twinId + ":" + executionId + ":" + commandId;
+                + twinId + ":" + getExecutionId() + ":" + commandId;
         String commandResultObjId = target.getPrefix() + "CommandResult:"
-                + twinId + ":" + executionId + ":" + commandId;
+                + twinId + ":" + getExecutionId() + ":" + commandId;
+        ObjectCache cache = dataLake.getCache();
+        Command command = cache != null ? cache.get(commandObjId, Command.class) : null;
+        if (command != null) {
+            return command;
+        }
         Map<String, String> commandHash = jedis.hgetAll(commandObjId);
         Map<String, String> resultHash = null;
         if (jedis.exists(commandResultObjId)) {
             resultHash = jedis.hgetAll(commandResultObjId);
         }
-        return Command.fromHashes(commandHash, resultHash);
+        command = Command.fromHashes(commandHash, resultHash);
+        // Finished commands no longer change
+        if (cache != null && command != null && command.isFinished()) {
+            cache.put(commandObjId, command);
+        }
+        return command;
     }
 
     public boolean commandHasResult(TwinTarget target, int commandId) {
         String id = target.getPrefix() + "CommandResult:"
-                + twinId + ":" + executionId + ":" + commandId;
+                + twinId + ":" + getExecutionId() + ":" + commandId;
         return jedis.exists(id);
     }
 
-    private void incrCommandCounter() {
-        jedis.incr("commandCounter");
+    /**
+     * Returns the number of commands waiting to be received by one of the twins: those still queued in
+     * the Data Lake and those claimed by the twin but not yet acknowledged. The twin only claims a bounded
+     * number of commands at once, so a growing backlog means that commands are sent faster than the twin
+     * can process them. Physical Twin commands share a single queue, so their backlog includes the
+     * commands of every twin.
+     * @param target The twin whose backlog to retrieve.
+     * @return The number of pending commands.
+     */
+    public long getCommandBacklog(TwinTarget target) {
+        target.requireOneTwin();
+        String queuePrefix = target.isDigital ? "DTCommand:" + twinId + "_" : "PTCommand_";
+        Pipeline pipeline = jedis.pipelined();
+        Response<Long> unprocessed = pipeline.zcard(queuePrefix + "UNPROCESSED");
+        Response<Long> processing = pipeline.zcard(queuePrefix + "PROCESSING");
+        pipeline.sync();
+        return unprocessed.get() + processing.get();
     }
 
     // Snapshots
@@ -105,8 +195,18 @@ public class DLTwin {
     public OutputSnapshot getOutputSnapshot(TwinTarget target, int timestamp) {
         target.requireOneTwin();
         String objectId = target.getPrefix() + "OutputSnapshot" + ":"
-                + twinId + ":" + executionId + ":" + timestamp;
-        return OutputSnapshot.fromHash(jedis.hgetAll(objectId));
+                + twinId + ":" + getExecutionId() + ":" + timestamp;
+        Map<String, String> hash = getCachedSnapshotHash(objectId);
+        if (hash == null) {
+            hash = getSnapshotHash(objectId);
+        }
+        if (hash.isEmpty()) {
+            // The snapshot may be stored as a repetition of the previous snapshot
+            List<OutputSnapshot> repetitions = deserialize(
+                    getPreviousSnapshotKey(target, timestamp), timestamp, timestamp);
+            return repetitions.isEmpty() ? null : repetitions.get(0);
+        }
+        return OutputSnapshot.fromHash(hash);
     }
 
     /**
@@ -118,9 +218,29 @@ public class DLTwin {
      */
     public List<OutputSnapshot> getOutputSnapshotsInRange(TwinTarget target, int timestampFrom, int timestampTo) {
         target.requireOneTwin();
-        String setId = target.getPrefix() + "OutputSnapshot:" + twinId + ":" + executionId + "_HISTORY";
-        Set<String> keys = jedis.zrangeByScore(setId, timestampFrom, timestampTo + 1);
-        return deserialize(keys);
+        String setId = target.getPrefix() + "OutputSnapshot:" + twinId + ":" + getExecutionId() + "_HISTORY";
+        List<String> keys = new ArrayList<>(getPreviousSnapshotKey(target, timestampFrom));
+        keys.addAll(jedis.zrangeByScore(setId, timestampFrom, timestampTo + 1));
+        return deserialize(keys, timestampFrom, timestampTo + 1);
+    }
+
+    /**
+     * Returns the output snapshots from one of the twins generated during a time interval as a series of
+     * columns, which are decoded without creating an OutputSnapshot object per snapshot. Unlike
+     * getOutputSnapshotsInRange, snapshots that are not valid are skipped instead of returned as null.
+     * @param target The twin whose snapshots to retrieve.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @return A series of snapshots, in ascending timestamp order.
+     */
+    public SnapshotSeries getOutputSnapshotSeriesInRange(TwinTarget target, int timestampFrom, int timestampTo) {
+        target.requireOneTwin();
+        String setId = target.getPrefix() + "OutputSnapshot:" + twinId + ":" + getExecutionId() + "_HISTORY";
+        List<String> keys = new ArrayList<>(getPreviousSnapshotKey(target, timestampFrom));
+        keys.addAll(jedis.zrangeByScore(setId, timestampFrom, timestampTo + 1));
+        SnapshotSeries series = new SnapshotSeries(twinId, getExecutionId(), keys.size());
+        forEachSnapshotHash(keys, hash -> addSnapshots(series, hash, timestampFrom, timestampTo + 1));
+        return series;
     }
 
     /**
@@ -131,21 +251,407 @@ public class DLTwin {
      */
     public List<OutputSnapshot> getLatestOutputSnapshots(TwinTarget target, int amount) {
         target.requireOneTwin();
-        String setId = target.getPrefix() + "OutputSnapshot:" + twinId + ":" + executionId + "_HISTORY";
+        String setId = target.getPrefix() + "OutputSnapshot:" + twinId + ":" + getExecutionId() + "_HISTORY";
         Set<String> keys = jedis.zrange(setId, -amount, -1);
-        return deserialize(keys);
+        List<OutputSnapshot> result = deserialize(keys, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        if (result.size() > amount) {
+            result = new ArrayList<>(result.subList(result.size() - amount, result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the output snapshots from one of the twins generated during a time interval, in ascending
+     * timestamp order, as a stream that fetches them lazily in pages (see DTDataLake.setFetchChunkSize).
+     * Unlike getOutputSnapshotsInRange, only one page is kept in memory at a time, so any interval can be
+     * traversed. The stream uses the connection of this object and must be consumed in one thread.
+     * @param target The twin whose snapshots to retrieve.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @return A stream of snapshots.
+     */
+    public Stream<OutputSnapshot> streamOutputSnapshotsInRange(
+            TwinTarget target, int timestampFrom, int timestampTo) {
+        target.requireOneTwin();
+        return toStream(new SnapshotPageIterator(target, timestampFrom, timestampTo, false));
+    }
+
+    /**
+     * Returns the output snapshots from one of the twins generated during a time interval, latest first,
+     * as a stream that fetches them lazily in pages (see streamOutputSnapshotsInRange).
+     * @param target The twin whose snapshots to retrieve.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @return A stream of snapshots, in descending timestamp order.
+     */
+    public Stream<OutputSnapshot> streamOutputSnapshotsInRangeDescending(
+            TwinTarget target, int timestampFrom, int timestampTo) {
+        target.requireOneTwin();
+        return toStream(new SnapshotPageIterator(target, timestampFrom, timestampTo, true));
+    }
+
+    private static Stream<OutputSnapshot> toStream(Iterator<OutputSnapshot> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+    }
+
+    /**
+     * Returns the rollups of the output snapshots of one of the twins with a given resolution during
+     * a time interval. The rollup of an interval is stored once the interval ends.
+     * @param target The twin whose rollups to retrieve.
+     * @param resolution The resolution of the rollups, e.g., SnapshotRollup.SECOND or SnapshotRollup.MINUTE.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @return A list of rollups, in ascending timestamp order.
+     */
+    public List<SnapshotRollup> getOutputSnapshotRollups(
+            TwinTarget target, int resolution, int timestampFrom, int timestampTo) {
+        target.requireOneTwin();
+        String setId = getRollupSetId(target, resolution);
+        long bucketFrom = Math.floorDiv(timestampFrom, resolution) * (long) resolution;
+        List<SnapshotRollup> result = new ArrayList<>();
+        List<String> keys = new ArrayList<>(jedis.zrangeByScore(setId, bucketFrom, timestampTo));
+        forEachHash(keys, binaryHash -> {
+            Map<String, String> hash = new HashMap<>();
+            for (Map.Entry<byte[], byte[]> entry : binaryHash.entrySet()) {
+                hash.put(SafeEncoder.encode(entry.getKey()), SafeEncoder.encode(entry.getValue()));
+            }
+            result.add(SnapshotRollup.fromHash(hash));
+        });
+        return result;
+    }
+
+    /**
+     * Returns the rollups of the output snapshots of one of the twins during a time interval, picking
+     * the finest resolution that returns at most <var>maxRollups</var> results and that still covers
+     * the interval (per-second rollups may have been removed by the retention policy).
+     * @param target The twin whose rollups to retrieve.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @param maxRollups The maximum number of rollups desired, e.g., the points of a chart.
+     * @return A list of rollups, in ascending timestamp order.
+     */
+    public List<SnapshotRollup> getOutputSnapshotRollupsInRange(
+            TwinTarget target, int timestampFrom, int timestampTo, int maxRollups) {
+        target.requireOneTwin();
+        long seconds = ((long) timestampTo - timestampFrom) / SnapshotRollup.SECOND + 1;
+        if (seconds <= maxRollups) {
+            Double firstSecond = getFirstRollupTimestamp(target, SnapshotRollup.SECOND);
+            Double firstMinute = getFirstRollupTimestamp(target, SnapshotRollup.MINUTE);
+            boolean trimmed = firstSecond != null && firstMinute != null
+                    && firstSecond > Math.max(timestampFrom, firstMinute + SnapshotRollup.MINUTE);
+            if (firstSecond != null && !trimmed) {
+                return getOutputSnapshotRollups(target, SnapshotRollup.SECOND, timestampFrom, timestampTo);
+            }
+        }
+        return getOutputSnapshotRollups(target, SnapshotRollup.MINUTE, timestampFrom, timestampTo);
+    }
+
+    private String getRollupSetId(TwinTarget target, int resolution) {
+        return target.getPrefix() + "OutputSnapshotRollup:" + resolution + ":"
+                + twinId + ":" + getExecutionId() + "_HISTORY";
+    }
+
+    private Double getFirstRollupTimestamp(TwinTarget target, int resolution) {
+        Set<Tuple> first = jedis.zrangeWithScores(getRollupSetId(target, resolution), 0, 0);
+        return first.isEmpty() ? null : first.iterator().next().getScore();
+    }
+
+    /**
+     * Returns the key of the last snapshot taken before a timestamp, which may represent repetitions
+     * of itself at that timestamp or later.
+     * @param target The twin whose snapshots to retrieve.
+     * @param timestamp The timestamp to search before.
+     * @return A list with the key of the previous snapshot, or an empty list if there is none.
+     */
+    private List<String> getPreviousSnapshotKey(TwinTarget target, int timestamp) {
+        String setId = target.getPrefix() + "OutputSnapshot:" + twinId + ":" + getExecutionId() + "_HISTORY";
+        return new ArrayList<>(jedis.zrevrangeByScore(setId, "(" + timestamp, "-inf", 0, 1));
+    }
+
+    /**
+     * Retrieves the hashes stored in a list of keys and passes them to a consumer in the same order.
+     * The hashes are requested in pipelined chunks (see DTDataLake.setFetchChunkSize), and the requests
+     * of the next chunk are sent before the replies of the current one are read, so that each chunk is
+     * consumed while the server is already answering the next one.
+     * @param keys The keys of the hashes.
+     * @param consumer The consumer of the hashes. Keys that do not exist yield an empty map.
+     */
+    private void forEachHash(List<String> keys, Consumer<Map<byte[], byte[]>> consumer) {
+        Client client = jedis.getClient();
+        int chunkSize = dataLake.getFetchChunkSize();
+        int received = 0;
+        int sent = sendHgetAll(client, keys, 0, chunkSize);
+        try {
+            while (received < keys.size()) {
+                int next = sendHgetAll(client, keys, sent, chunkSize);
+                List<Object> replies = client.getMany(sent - received);
+                received = sent;
+                sent = next;
+                for (Object reply : replies) {
+                    if (reply instanceof JedisDataException) {
+                        throw (JedisDataException) reply;
+                    }
+                    consumer.accept(BuilderFactory.BYTE_ARRAY_MAP.build(reply));
+                }
+            }
+        } finally {
+            // Discard the replies still pending if the consumer failed, so the connection can be reused
+            if (received < sent && !client.isBroken()) {
+                client.getMany(sent - received);
+            }
+        }
+    }
+
+    private static int sendHgetAll(Client client, List<String> keys, int from, int chunkSize) {
+        int to = Math.min(keys.size(), from + chunkSize);
+        for (int i = from; i < to; i++) {
+            client.hgetAll(SafeEncoder.encode(keys.get(i)));
+        }
+        return to;
+    }
+
+    /**
+     * Retrieves the hash of a snapshot, which may be stored with one string field per value or with
+     * its values packed in a binary field.
+     * @param key The key of the snapshot.
+     * @return The fields of the snapshot, or an empty map if it does not exist.
+     */
+    private Map<String, String> getSnapshotHash(String key) {
+        return decodeSnapshotHash(jedis.hgetAll(SafeEncoder.encode(key)));
     }
 
-    private List<OutputSnapshot> deserialize(Collection<String> keys) {
-        int maxLength = keys.size();
-        List<OutputSnapshot> result = new ArrayList<>(maxLength);
-        if (maxLength > 0) {
-            for (String k : keys) {
-                Map<String, String> hash = jedis.hgetAll(k);
-                result.add(OutputSnapshot.fromHash(hash));
+    /**
+     * Decodes the hash of a snapshot. The packed field is returned as an ISO-8859-1 string so that its
+     * bytes are preserved.
+     * @param binaryHash The hash of the snapshot, as returned by Redis.
+     * @return The fields of the snapshot.
+     */
+    private static Map<String, String> decodeSnapshotHash(Map<byte[], byte[]> binaryHash) {
+        Map<String, String> hash = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : binaryHash.entrySet()) {
+            String field = SafeEncoder.encode(entry.getKey());
+            if (field.equals(OutputSnapshot.PACKED)) {
+                hash.put(field, new String(entry.getValue(), StandardCharsets.ISO_8859_1));
+            } else {
+                hash.put(field, SafeEncoder.encode(entry.getValue()));
             }
         }
+        return hash;
+    }
+
+    /**
+     * Deserializes the snapshots stored in a list of keys, expanding the repetitions of each snapshot
+     * (see "repeatUntil" and "repeatEvery") and keeping only those taken in a time interval.
+     * The snapshots are fetched in pipelined chunks and decoded while the next chunk is in flight.
+     * @param keys The keys of the snapshots, in ascending timestamp order.
+     * @param timestampFrom The first timestamp to return results from.
+     * @param timestampTo The last timestamp to return results from.
+     * @return A list of snapshots.
+     */
+    private List<OutputSnapshot> deserialize(Collection<String> keys, int timestampFrom, int timestampTo) {
+        List<OutputSnapshot> result = new ArrayList<>(keys.size());
+        forEachSnapshotHash(keys, hash -> addSnapshots(result, hash, timestampFrom, timestampTo));
         return result;
     }
 
+    /**
+     * Retrieves the hashes of the snapshots stored in a list of keys and passes them to a consumer in the
+     * same order. Cached snapshots are not read again, and the rest are fetched in pipelined chunks.
+     * @param keys The keys of the snapshots.
+     * @param consumer The consumer of the hashes. Keys that do not exist yield an empty map.
+     */
+    private void forEachSnapshotHash(Collection<String> keys, Consumer<Map<String, String>> consumer) {
+        List<String> keyList = new ArrayList<>(keys);
+        List<Map<String, String>> cached = new ArrayList<>(keyList.size());
+        List<String> missing = new ArrayList<>();
+        for (String k : keyList) {
+            Map<String, String> hash = getCachedSnapshotHash(k);
+            cached.add(hash);
+            if (hash == null) {
+                missing.add(k);
+            }
+        }
+        int[] position = { 0 };
+        forEachHash(missing, binaryHash -> {
+            while (cached.get(position[0]) != null) {
+                consumer.accept(cached.get(position[0]++));
+            }
+            int i = position[0]++;
+            Map<String, String> hash = decodeSnapshotHash(binaryHash);
+            // Only the latest snapshot of a twin can still change, when it becomes the base of a run of
+            // repetitions, so a snapshot is cached once a later one is known
+            if (i < keyList.size() - 1) {
+                cacheSnapshotHash(keyList.get(i), hash);
+            }
+            consumer.accept(hash);
+        });
+        while (position[0] < keyList.size()) {
+            consumer.accept(cached.get(position[0]++));
+        }
+    }
+
+    /**
+     * Adds a snapshot and its repetitions to a list of snapshots, keeping only those in a time interval.
+     * @param result The list of snapshots.
+     * @param hash The fields of the snapshot.
+     * @param timestampFrom The first timestamp to add.
+     * @param timestampTo The last timestamp to add.
+     */
+    private static void addSnapshots(
+            List<OutputSnapshot> result, Map<String, String> hash, int timestampFrom, int timestampTo) {
+        OutputSnapshot snapshot = OutputSnapshot.fromHash(hash);
+        if (snapshot == null) {
+            result.add(null);
+            return;
+        }
+        if (snapshot.getTimestamp() >= timestampFrom && snapshot.getTimestamp() <= timestampTo) {
+            result.add(snapshot);
+        }
+        forEachRepetition(hash, snapshot.getTimestamp(), timestampFrom, timestampTo,
+                t -> result.add(snapshot.withTimestamp(t)));
+    }
+
+    /**
+     * Adds a snapshot and its repetitions to a series of snapshots, keeping only those in a time interval.
+     * Invalid snapshots are skipped.
+     * @param series The series of snapshots.
+     * @param hash The fields of the snapshot.
+     * @param timestampFrom The first timestamp to add.
+     * @param timestampTo The last timestamp to add.
+     */
+    private static void addSnapshots(
+            SnapshotSeries series, Map<String, String> hash, int timestampFrom, int timestampTo) {
+        int index = series.size();
+        if (!series.add(hash)) {
+            return;
+        }
+        int timestamp = series.getTimestamp(index);
+        boolean[] kept = { timestamp >= timestampFrom && timestamp <= timestampTo };
+        forEachRepetition(hash, timestamp, timestampFrom, timestampTo, t -> {
+            if (kept[0]) {
+                series.repeat(index, t);
+            } else {
+                // The snapshot itself is out of the interval, reuse its row for the first repetition
+                series.setTimestamp(index, t);
+                kept[0] = true;
+            }
+        });
+        if (!kept[0]) {
+            series.removeLast();
+        }
+    }
+
+    /**
+     * Calls an action with the timestamp of each repetition of a snapshot (see "repeatUntil" and
+     * "repeatEvery") in a time interval, in ascending order.
+     * @param hash The fields of the snapshot.
+     * @param timestamp The timestamp of the snapshot.
+     * @param timestampFrom The first timestamp of the interval.
+     * @param timestampTo The last timestamp of the interval.
+     * @param action The action to call.
+     */
+    private static void forEachRepetition(
+            Map<String, String> hash, int timestamp, int timestampFrom, int timestampTo, IntConsumer action) {
+        if (hash.containsKey("repeatUntil") && hash.containsKey("repeatEvery")) {
+            long repeatEvery = Integer.parseInt(hash.get("repeatEvery"));
+            long repeatUntil = Math.min(Integer.parseInt(hash.get("repeatUntil")), timestampTo);
+            long t = timestamp + repeatEvery;
+            if (repeatEvery > 0 && t < timestampFrom) {
+                t += (timestampFrom - t + repeatEvery - 1) / repeatEvery * repeatEvery;
+            }
+            for (; repeatEvery > 0 && t <= repeatUntil; t += repeatEvery) {
+                action.accept((int) t);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getCachedSnapshotHash(String key) {
+        ObjectCache cache = dataLake.getCache();
+        return cache != null ? cache.get(key, Map.class) : null;
+    }
+
+    private void cacheSnapshotHash(String key, Map<String, String> hash) {
+        ObjectCache cache = dataLake.getCache();
+        if (cache != null && !hash.isEmpty()) {
+            cache.put(key, Collections.unmodifiableMap(hash));
+        }
+    }
+
+    /**
+     * Iterates over the snapshots of a twin in a time interval, one page of keys at a time. Each page
+     * is read with ZRANGEBYSCORE (or ZREVRANGEBYSCORE) and LIMIT, starting right after the score of the
+     * last key of the previous page, so every page costs the same regardless of its position.
+     * The last snapshot before the interval is also read (first in ascending order, last in descending
+     * order), since it may be repeated inside the interval.
+     */
+    private class SnapshotPageIterator implements Iterator<OutputSnapshot> {
+
+        private final TwinTarget target;
+        private final String setId;
+        private final int timestampFrom;
+        private final int timestampTo;
+        private final boolean descending;
+        private String cursor;
+        private boolean firstPage;
+        private boolean lastPage;
+        private Iterator<OutputSnapshot> page;
+
+        SnapshotPageIterator(TwinTarget target, int timestampFrom, int timestampTo, boolean descending) {
+            this.target = target;
+            this.setId = target.getPrefix() + "OutputSnapshot:" + twinId + ":" + getExecutionId() + "_HISTORY";
+            this.timestampFrom = timestampFrom;
+            this.timestampTo = timestampTo;
+            this.descending = descending;
+            this.cursor = descending ? (timestampTo + 1) + "" : timestampFrom + "";
+            this.firstPage = true;
+            this.lastPage = false;
+            this.page = Collections.emptyIterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !lastPage) {
+                page = nextPage().iterator();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public OutputSnapshot next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        private List<OutputSnapshot> nextPage() {
+            int pageSize = dataLake.getFetchChunkSize();
+            Set<Tuple> tuples = descending
+                    ? jedis.zrevrangeByScoreWithScores(setId, cursor, timestampFrom + "", 0, pageSize)
+                    : jedis.zrangeByScoreWithScores(setId, cursor, (timestampTo + 1) + "", 0, pageSize);
+            List<String> keys = new ArrayList<>(tuples.size() + 1);
+            for (Tuple tuple : tuples) {
+                keys.add(tuple.getElement());
+                cursor = "(" + (long) tuple.getScore();
+            }
+            lastPage = tuples.size() < pageSize;
+            if (descending) {
+                Collections.reverse(keys);
+                if (lastPage) {
+                    keys.addAll(0, getPreviousSnapshotKey(target, timestampFrom));
+                }
+                List<OutputSnapshot> result = deserialize(keys, timestampFrom, timestampTo + 1);
+                Collections.reverse(result);
+                return result;
+            }
+            if (firstPage) {
+                keys.addAll(0, getPreviousSnapshotKey(target, timestampFrom));
+                firstPage = false;
+            }
+            return deserialize(keys, timestampFrom, timestampTo + 1);
+        }
+
+    }
+
 }
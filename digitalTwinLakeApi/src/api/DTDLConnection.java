@@ -1,6 +1,7 @@
 package api;
 
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 
 import java.io.Closeable;
 
@@ -10,16 +11,68 @@ import java.io.Closeable;
  */
 public class DTDLConnection implements Closeable {
 
+    // Default maximum number of connections of the pool, shared by all the Data Lakes of the connection.
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
     private final JedisPool pool;
+    private final int maxConnections;
 
     public DTDLConnection(String host, int port) {
-        pool = new JedisPool(host, port);
+        this(host, port, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Constructor with a custom pool size.
+     * @param host The hostname of the Redis instance that contains the Data Lake.
+     * @param port The port of the Redis instance.
+     * @param maxConnections The maximum number of connections open at the same time. Each DTDataLake
+     *                       keeps one until it is closed, and each ConcurrentDataLake operation borrows
+     *                       one while it runs.
+     */
+    public DTDLConnection(String host, int port, int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(maxConnections);
+        config.setMaxIdle(maxConnections);
+        this.pool = new JedisPool(config, host, port);
+        this.maxConnections = maxConnections;
     }
 
+    /**
+     * Returns a Data Lake that keeps a connection of the pool until it is closed. It is not thread-safe.
+     * @return The Data Lake.
+     */
     public DTDataLake getDataLake() {
         return new DTDataLake(pool);
     }
 
+    /**
+     * Returns a thread-safe Data Lake that borrows a connection of the pool for each operation, and runs
+     * its asynchronous operations in as many threads as the pool has connections.
+     * @return The Data Lake, which must be closed to stop its threads.
+     */
+    public ConcurrentDataLake getConcurrentDataLake() {
+        return new ConcurrentDataLake(pool, maxConnections);
+    }
+
+    /**
+     * Returns the maximum number of connections open at the same time.
+     * @return The size of the pool.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Returns the number of connections currently borrowed from the pool.
+     * @return The number of active connections.
+     */
+    public int getActiveConnections() {
+        return pool.getNumActive();
+    }
+
     public void close() {
         pool.close();
     }
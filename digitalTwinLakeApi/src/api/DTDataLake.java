@@ -15,10 +15,27 @@ public class DTDataLake implements Closeable {
     private static final String DT_OUTPUT_SNAPSHOT = "DTOutputSnapshot";
     private static final String PT_OUTPUT_SNAPSHOT = "PTOutputSnapshot";
 
+    // Default number of hashes requested in each pipelined chunk when reading ranges of objects.
+    public static final int DEFAULT_FETCH_CHUNK_SIZE = 256;
+
     private final Jedis jedis;
+    private int fetchChunkSize;
+    private ObjectCache cache;
 
     DTDataLake(JedisPool pool) {
-        jedis = pool.getResource();
+        this(pool.getResource(), DEFAULT_FETCH_CHUNK_SIZE, null);
+    }
+
+    /**
+     * Constructor for a Data Lake that uses a connection borrowed for a single operation.
+     * @param jedis The connection, which is returned to its pool when the Data Lake is closed.
+     * @param fetchChunkSize The number of hashes requested in each pipelined chunk.
+     * @param cache The cache of immutable objects, or null to disable it.
+     */
+    DTDataLake(Jedis jedis, int fetchChunkSize, ObjectCache cache) {
+        this.jedis = jedis;
+        this.fetchChunkSize = fetchChunkSize;
+        this.cache = cache;
     }
 
     @Override
@@ -93,9 +110,81 @@ public class DTDataLake implements Closeable {
         }
     }
 
+    /**
+     * Returns the number of hashes requested in each pipelined chunk when reading ranges of objects.
+     * @return The chunk size.
+     */
+    public int getFetchChunkSize() {
+        return fetchChunkSize;
+    }
+
+    /**
+     * Sets the number of hashes requested in each pipelined chunk when reading ranges of objects
+     * (e.g., DLTwin.getOutputSnapshotsInRange). Each chunk is decoded while the next one is being
+     * fetched, so larger chunks need fewer round trips but keep more replies in memory.
+     * @param fetchChunkSize The chunk size.
+     */
+    public void setFetchChunkSize(int fetchChunkSize) {
+        if (fetchChunkSize <= 0) {
+            throw new IllegalArgumentException("fetchChunkSize must be positive");
+        }
+        this.fetchChunkSize = fetchChunkSize;
+    }
+
+    /**
+     * Enables a cache of the objects read from the Data Lake that no longer change: the snapshots of the
+     * twins (except the latest one of each twin, which can still be extended with repetitions) and the
+     * finished commands. The least recently used objects are evicted when the cache is full.
+     * The cache is shared by all the DLTwin objects of this Data Lake. Setting a new size clears it.
+     * @param maxEntries The maximum number of objects to keep, or 0 to disable the cache (the default).
+     */
+    public void setCacheSize(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must be non-negative");
+        }
+        cache = maxEntries > 0 ? new ObjectCache(maxEntries) : null;
+    }
+
+    /**
+     * Returns the maximum number of objects kept in the cache.
+     * @return The size of the cache, or 0 if the cache is disabled.
+     */
+    public int getCacheSize() {
+        return cache != null ? cache.getMaxEntries() : 0;
+    }
+
+    /**
+     * Returns the number of objects found in the cache since it was enabled.
+     * @return The number of cache hits.
+     */
+    public long getCacheHits() {
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    /**
+     * Returns the number of objects looked up in the cache and read from Redis since it was enabled.
+     * @return The number of cache misses.
+     */
+    public long getCacheMisses() {
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    /**
+     * Removes every object from the cache, e.g., after the Data Lake has been reset.
+     */
+    public void clearCache() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    ObjectCache getCache() {
+        return cache;
+    }
+
     /**
      * Generates and returns a DLTwin object to perform queries on a specific twin system
-     * in the current executionId.
+     * in the current executionId, which is read by the first query that needs it.
      * @param twinId The ID of the twin to query.
      * @return A DLTwin object to perform queries on the specified twin.
      */
@@ -0,0 +1,72 @@
+package api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of Data Lake objects that no longer change, keyed by their object IDs. When the cache
+ * is full, the least recently used object is evicted. Its methods are synchronized, so it can be shared
+ * by several threads.
+ */
+class ObjectCache {
+
+    private final int maxEntries;
+    private final Map<String, Object> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Default constructor.
+     * @param maxEntries The maximum number of objects to keep.
+     */
+    ObjectCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > ObjectCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns a cached object, counting the lookup as a hit or a miss.
+     * @param key The ID of the object.
+     * @param type The class of the object.
+     * @return The object, or null if it is not cached.
+     */
+    synchronized <T> T get(String key, Class<T> type) {
+        Object value = entries.get(key);
+        if (type.isInstance(value)) {
+            hits++;
+            return type.cast(value);
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put(String key, Object value) {
+        entries.put(key, value);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+}
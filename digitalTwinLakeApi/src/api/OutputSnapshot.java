@@ -1,5 +1,9 @@
 package api;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -8,6 +12,22 @@ import java.util.Map;
 @SuppressWarnings("unused")
 public class OutputSnapshot {
 
+    /**
+     * Name of the field that stores the servo values and flags of a snapshot in packed binary form.
+     * Its value is read as an ISO-8859-1 string, which maps each byte to one character.
+     */
+    static final String PACKED = "packed";
+    private static final byte PACKED_VERSION = 1;
+    private static final double PACKED_SCALE = 100.0;
+
+    // Positions of the values in the rows returned by decodeRow
+    static final int ROW_TIMESTAMP = 0;
+    static final int ROW_MOVING = 1;
+    static final int ROW_CURRENT_ANGLES = 2;
+    static final int ROW_TARGET_ANGLES = 8;
+    static final int ROW_CURRENT_SPEEDS = 14;
+    static final int ROW_SIZE = 20;
+
     private int timestamp;
     private String twinId;
     private String executionId;
@@ -24,29 +44,113 @@ public class OutputSnapshot {
      * @return The resulting snapshot, or null if the hash does not represent a valid snapshot.
      */
     static OutputSnapshot fromHash(Map<String, String> hash) {
+        int[] row = new int[ROW_SIZE];
+        if (!decodeRow(hash, row)) {
+            return null;
+        }
         OutputSnapshot result = new OutputSnapshot();
+        result.timestamp = row[ROW_TIMESTAMP];
+        result.isMoving = row[ROW_MOVING] != 0;
+        result.twinId = hash.get("twinId");
+        result.executionId = hash.get("executionId");
+        result.currentAngles = new Position();
+        result.targetAngles = new Position();
+        result.currentSpeeds = new ServoVector();
+        for (int i = 0; i < 6; i++) {
+            result.currentAngles.set(i, row[ROW_CURRENT_ANGLES + i]);
+            result.targetAngles.set(i, row[ROW_TARGET_ANGLES + i]);
+            result.currentSpeeds.set(i, row[ROW_CURRENT_SPEEDS + i]);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the values of a snapshot from the Data Lake into a row of ROW_SIZE integers: the timestamp,
+     * whether the robot is moving (0 or 1), and the six current angles, six target angles and six current
+     * speeds, rounded to whole degrees and with the angles limited to the range of each servo.
+     * @param hash The object to deserialize.
+     * @param row The array to store the values in.
+     * @return False if the hash does not represent a valid snapshot.
+     */
+    static boolean decodeRow(Map<String, String> hash, int[] row) {
+        if (hash.containsKey(PACKED)) {
+            return decodePackedRow(hash, row);
+        }
         try {
-            result.timestamp = Integer.parseInt(hash.get("timestamp"));
-            result.twinId = hash.get("twinId");
-            result.executionId = hash.get("executionId");
-            result.currentAngles = new Position();
-            result.targetAngles = new Position();
-            result.currentSpeeds = new ServoVector();
+            row[ROW_TIMESTAMP] = Integer.parseInt(hash.get("timestamp"));
             for (int i = 0; i < 6; i++) {
                 float currentAngle = Float.parseFloat(hash.get("currentAngles_" + (i + 1)));
                 int targetAngle = Integer.parseInt(hash.get("targetAngles_" + (i + 1)));
                 float currentSpeed = Float.parseFloat(hash.get("currentSpeeds_" + (i + 1)));
-                result.currentAngles.set(i, Math.round(currentAngle));
-                result.targetAngles.set(i, targetAngle);
-                result.currentSpeeds.set(i, Math.round(currentSpeed));
+                row[ROW_CURRENT_ANGLES + i] = Position.clamp(i, Math.round(currentAngle));
+                row[ROW_TARGET_ANGLES + i] = Position.clamp(i, targetAngle);
+                row[ROW_CURRENT_SPEEDS + i] = Math.round(currentSpeed);
             }
-            result.isMoving = !hash.get("moving").equals("0");
-            return result;
+            row[ROW_MOVING] = hash.get("moving").equals("0") ? 0 : 1;
+            return true;
         } catch (NumberFormatException | NullPointerException ex) {
-            return null;
+            return false;
         }
     }
 
+    /**
+     * Decodes a snapshot stored with the packed encoding: a little-endian layout with a version
+     * byte, the timestamp (int32), a flags byte (bit 0 = moving), and the six current angles, six
+     * target angles and six current speeds (int16 each, in hundredths of a degree).
+     * @param hash The object to deserialize.
+     * @param row The array to store the values in (see decodeRow).
+     * @return False if the hash does not represent a valid snapshot.
+     */
+    private static boolean decodePackedRow(Map<String, String> hash, int[] row) {
+        try {
+            ByteBuffer packed = ByteBuffer.wrap(hash.get(PACKED).getBytes(StandardCharsets.ISO_8859_1))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (packed.get() != PACKED_VERSION) {
+                return false;
+            }
+            row[ROW_TIMESTAMP] = packed.getInt();
+            row[ROW_MOVING] = packed.get() & 1;
+            for (int i = 0; i < 18; i++) {
+                int value = (int) Math.round(packed.getShort() / PACKED_SCALE);
+                row[ROW_CURRENT_ANGLES + i] = i < 12 ? Position.clamp(i % 6, value) : value;
+            }
+            return true;
+        } catch (BufferUnderflowException ex) {
+            return false;
+        }
+    }
+
+    static OutputSnapshot of(int timestamp, String twinId, String executionId, Position currentAngles,
+                             Position targetAngles, ServoVector currentSpeeds, boolean isMoving) {
+        OutputSnapshot result = new OutputSnapshot();
+        result.timestamp = timestamp;
+        result.twinId = twinId;
+        result.executionId = executionId;
+        result.currentAngles = currentAngles;
+        result.targetAngles = targetAngles;
+        result.currentSpeeds = currentSpeeds;
+        result.isMoving = isMoving;
+        return result;
+    }
+
+    /**
+     * Returns a copy of this snapshot taken at a different time, e.g., to expand the repetitions of a
+     * snapshot of a stationary robot.
+     * @param timestamp The timestamp of the copy.
+     * @return The resulting snapshot.
+     */
+    OutputSnapshot withTimestamp(int timestamp) {
+        OutputSnapshot result = new OutputSnapshot();
+        result.timestamp = timestamp;
+        result.twinId = twinId;
+        result.executionId = executionId;
+        result.currentAngles = currentAngles;
+        result.targetAngles = targetAngles;
+        result.currentSpeeds = currentSpeeds;
+        result.isMoving = isMoving;
+        return result;
+    }
+
     public int getTimestamp() {
         return timestamp;
     }
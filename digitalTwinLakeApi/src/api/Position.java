@@ -16,6 +16,9 @@ public class Position {
     public static final int GRIPPER_OPEN = 10;
     public static final int GRIPPER_CLOSED = 73;
 
+    private static final int[] MIN_ANGLES = { 0, 15, 0, 0, 0, GRIPPER_OPEN };
+    private static final int[] MAX_ANGLES = { 180, 165, 180, 180, 180, GRIPPER_CLOSED };
+
     private int base, shoulder, elbow, wrist, wristRotation, gripper;
 
     /**
@@ -56,37 +59,37 @@ public class Position {
         return base;
     }
     public void setBase(int base) {
-        this.base = clamp(base, 0, 180);
+        this.base = clamp(0, base);
     }
     public int getShoulder() {
         return shoulder;
     }
     public void setShoulder(int shoulder) {
-        this.shoulder = clamp(shoulder, 15, 165);
+        this.shoulder = clamp(1, shoulder);
     }
     public int getElbow() {
         return elbow;
     }
     public void setElbow(int elbow) {
-        this.elbow = clamp(elbow, 0, 180);
+        this.elbow = clamp(2, elbow);
     }
     public int getWrist() {
         return wrist;
     }
     public void setWrist(int wrist) {
-        this.wrist = clamp(wrist, 0, 180);
+        this.wrist = clamp(3, wrist);
     }
     public int getWristRotation() {
         return wristRotation;
     }
     public void setWristRotation(int wristRotation) {
-        this.wristRotation = clamp(wristRotation, 0, 180);
+        this.wristRotation = clamp(4, wristRotation);
     }
     public int getGripper() {
         return gripper;
     }
     public void setGripper(int gripper) {
-        this.gripper = clamp(gripper, GRIPPER_OPEN, GRIPPER_CLOSED);
+        this.gripper = clamp(5, gripper);
     }
 
     public int get(int index) {
@@ -129,8 +132,14 @@ public class Position {
         };
     }
 
-    private static int clamp(int val, int min, int max) {
-        return Math.max(min, Math.min(val, max));
+    /**
+     * Limits an angle to the range of a servo.
+     * @param index The index of the servo, from 0 (base) to 5 (gripper).
+     * @param val The angle.
+     * @return The closest angle in the range of the servo.
+     */
+    static int clamp(int index, int val) {
+        return Math.max(MIN_ANGLES[index], Math.min(val, MAX_ANGLES[index]));
     }
 
 }
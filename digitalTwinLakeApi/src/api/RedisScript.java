@@ -0,0 +1,67 @@
+package api;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A Lua script executed atomically by the Redis server. The script is called by its SHA1 digest with
+ * EVALSHA, so its source is only sent to the server with SCRIPT LOAD: once when <i>load</i> is called, or
+ * again if the server does not know the script (e.g., after a restart or SCRIPT FLUSH).
+ */
+class RedisScript {
+
+    private final String source;
+    private final String sha;
+
+    /**
+     * Default constructor.
+     * @param source The Lua source code of the script.
+     */
+    RedisScript(String source) {
+        this.source = source;
+        this.sha = sha1(source);
+    }
+
+    /**
+     * Loads the script in the Redis server, so that the first call does not need to send it.
+     * @param jedis An instance of the Jedis client connected to the server.
+     */
+    void load(Jedis jedis) {
+        jedis.scriptLoad(source);
+    }
+
+    /**
+     * Executes the script.
+     * @param jedis An instance of the Jedis client connected to the server.
+     * @param keys The keys the script accesses (KEYS in the script).
+     * @param args The rest of the arguments of the script (ARGV in the script).
+     * @return The result of the script, converted by Jedis.
+     */
+    Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException ex) {
+            jedis.scriptLoad(source);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+
+    private static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package api;
+
+import java.util.Map;
+
+/**
+ * Class that contains a summary of the output snapshots of a twin taken during a fixed time interval:
+ * the minimum, maximum and mean of each servo's current angle and speed, and the ratio of snapshots
+ * where the robot was moving.
+ */
+@SuppressWarnings("unused")
+public class SnapshotRollup {
+
+    /**
+     * Resolution of the per-second rollups, in milliseconds.
+     */
+    public static final int SECOND = 1000;
+
+    /**
+     * Resolution of the per-minute rollups, in milliseconds.
+     */
+    public static final int MINUTE = 60000;
+
+    private int timestamp;
+    private int resolution;
+    private String twinId;
+    private String executionId;
+    private int count;
+    private double movingRatio;
+    private ServoVector minAngles, maxAngles, meanAngles;
+    private ServoVector minSpeeds, maxSpeeds, meanSpeeds;
+
+    private SnapshotRollup() { }
+
+    /**
+     * Deserializes a rollup from the Data Lake into a SnapshotRollup Java object.
+     * @param hash The object to deserialize.
+     * @return The resulting rollup, or null if the hash does not represent a valid rollup.
+     */
+    static SnapshotRollup fromHash(Map<String, String> hash) {
+        SnapshotRollup result = new SnapshotRollup();
+        try {
+            result.timestamp = Integer.parseInt(hash.get("timestamp"));
+            result.resolution = Integer.parseInt(hash.get("resolution"));
+            result.twinId = hash.get("twinId");
+            result.executionId = hash.get("executionId");
+            result.count = Integer.parseInt(hash.get("count"));
+            result.movingRatio = Double.parseDouble(hash.get("movingRatio"));
+            result.minAngles = parseVector(hash, "currentAngles", "min");
+            result.maxAngles = parseVector(hash, "currentAngles", "max");
+            result.meanAngles = parseVector(hash, "currentAngles", "mean");
+            result.minSpeeds = parseVector(hash, "currentSpeeds", "min");
+            result.maxSpeeds = parseVector(hash, "currentSpeeds", "max");
+            result.meanSpeeds = parseVector(hash, "currentSpeeds", "mean");
+            return result;
+        } catch (NumberFormatException | NullPointerException ex) {
+            return null;
+        }
+    }
+
+    private static ServoVector parseVector(Map<String, String> hash, String sequence, String statistic) {
+        ServoVector result = new ServoVector();
+        for (int i = 0; i < 6; i++) {
+            result.set(i, Double.parseDouble(hash.get(sequence + "_" + (i + 1) + "_" + statistic)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first timestamp of the interval summarized by this rollup.
+     * @return The timestamp where the interval starts.
+     */
+    public int getTimestamp() {
+        return timestamp;
+    }
+    /**
+     * Returns the duration of the interval summarized by this rollup.
+     * @return The resolution of the rollup in milliseconds, e.g., SECOND or MINUTE.
+     */
+    public int getResolution() {
+        return resolution;
+    }
+    public String getTwinId() {
+        return twinId;
+    }
+    public String getExecutionId() {
+        return executionId;
+    }
+    /**
+     * Returns the number of snapshots summarized by this rollup.
+     * @return The number of snapshots taken during the interval.
+     */
+    public int getCount() {
+        return count;
+    }
+    /**
+     * Returns the ratio of snapshots in the interval where the robot was moving.
+     * @return A value from 0 to 1.
+     */
+    public double getMovingRatio() {
+        return movingRatio;
+    }
+    public ServoVector getMinAngles() {
+        return new ServoVector(minAngles);
+    }
+    public ServoVector getMaxAngles() {
+        return new ServoVector(maxAngles);
+    }
+    public ServoVector getMeanAngles() {
+        return new ServoVector(meanAngles);
+    }
+    public ServoVector getMinSpeeds() {
+        return new ServoVector(minSpeeds);
+    }
+    public ServoVector getMaxSpeeds() {
+        return new ServoVector(maxSpeeds);
+    }
+    public ServoVector getMeanSpeeds() {
+        return new ServoVector(meanSpeeds);
+    }
+
+    public String toString() {
+        return "SnapshotRollup:" + resolution + ":" + twinId + ":" + executionId + ":" + timestamp
+                + "(" + count + ", " + movingRatio + ", " + meanAngles + ", " + meanSpeeds + ")";
+    }
+
+}
@@ -0,0 +1,309 @@
+package api;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Series of output snapshots of a twin stored by columns: the timestamps, the moving flags, and the
+ * values of each servo in primitive arrays, so that large ranges of snapshots can be analyzed without
+ * creating an object per snapshot. The columns are exposed as read-only buffers that share the arrays
+ * of the series, and the aggregate methods are plain loops over them.
+ * Servos are indexed from 0 (base) to 5 (gripper), as in Position and ServoVector.
+ */
+@SuppressWarnings("unused")
+public class SnapshotSeries {
+
+    public static final int NUMBER_OF_SERVOS = 6;
+
+    private final String twinId;
+    private final String executionId;
+    private final int[] row;
+    private int size;
+    private int[] timestamps;
+    private boolean[] moving;
+    private final int[][] currentAngles;
+    private final int[][] targetAngles;
+    private final double[][] currentSpeeds;
+
+    /**
+     * Default constructor.
+     * @param twinId The ID of the twin of the snapshots.
+     * @param executionId The ID of the execution of the snapshots.
+     * @param capacity The expected number of snapshots.
+     */
+    SnapshotSeries(String twinId, String executionId, int capacity) {
+        this.twinId = twinId;
+        this.executionId = executionId;
+        this.row = new int[OutputSnapshot.ROW_SIZE];
+        this.size = 0;
+        capacity = Math.max(capacity, 16);
+        this.timestamps = new int[capacity];
+        this.moving = new boolean[capacity];
+        this.currentAngles = new int[NUMBER_OF_SERVOS][capacity];
+        this.targetAngles = new int[NUMBER_OF_SERVOS][capacity];
+        this.currentSpeeds = new double[NUMBER_OF_SERVOS][capacity];
+    }
+
+    /**
+     * Decodes a snapshot from the Data Lake and appends it to the series.
+     * @param hash The object to deserialize.
+     * @return False if the hash does not represent a valid snapshot, which is not appended.
+     */
+    boolean add(Map<String, String> hash) {
+        if (!OutputSnapshot.decodeRow(hash, row)) {
+            return false;
+        }
+        ensureCapacity(size + 1);
+        timestamps[size] = row[OutputSnapshot.ROW_TIMESTAMP];
+        moving[size] = row[OutputSnapshot.ROW_MOVING] != 0;
+        for (int servo = 0; servo < NUMBER_OF_SERVOS; servo++) {
+            currentAngles[servo][size] = row[OutputSnapshot.ROW_CURRENT_ANGLES + servo];
+            targetAngles[servo][size] = row[OutputSnapshot.ROW_TARGET_ANGLES + servo];
+            currentSpeeds[servo][size] = row[OutputSnapshot.ROW_CURRENT_SPEEDS + servo];
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Appends a copy of a snapshot of the series taken at a different time, e.g., to expand the
+     * repetitions of a snapshot of a stationary robot.
+     * @param index The index of the snapshot to copy.
+     * @param timestamp The timestamp of the copy.
+     */
+    void repeat(int index, int timestamp) {
+        ensureCapacity(size + 1);
+        timestamps[size] = timestamp;
+        moving[size] = moving[index];
+        for (int servo = 0; servo < NUMBER_OF_SERVOS; servo++) {
+            currentAngles[servo][size] = currentAngles[servo][index];
+            targetAngles[servo][size] = targetAngles[servo][index];
+            currentSpeeds[servo][size] = currentSpeeds[servo][index];
+        }
+        size++;
+    }
+
+    void setTimestamp(int index, int timestamp) {
+        timestamps[index] = timestamp;
+    }
+
+    void removeLast() {
+        size--;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        moving = Arrays.copyOf(moving, newCapacity);
+        for (int servo = 0; servo < NUMBER_OF_SERVOS; servo++) {
+            currentAngles[servo] = Arrays.copyOf(currentAngles[servo], newCapacity);
+            targetAngles[servo] = Arrays.copyOf(targetAngles[servo], newCapacity);
+            currentSpeeds[servo] = Arrays.copyOf(currentSpeeds[servo], newCapacity);
+        }
+    }
+
+    // Values
+    // --------------------------------------------------------------------------------------------
+
+    public String getTwinId() {
+        return twinId;
+    }
+    public String getExecutionId() {
+        return executionId;
+    }
+    public int size() {
+        return size;
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    public int getTimestamp(int index) {
+        return timestamps[checkIndex(index)];
+    }
+    public boolean isMoving(int index) {
+        return moving[checkIndex(index)];
+    }
+    public int getCurrentAngle(int index, int servo) {
+        return currentAngles[servo][checkIndex(index)];
+    }
+    public int getTargetAngle(int index, int servo) {
+        return targetAngles[servo][checkIndex(index)];
+    }
+    public double getCurrentSpeed(int index, int servo) {
+        return currentSpeeds[servo][checkIndex(index)];
+    }
+
+    /**
+     * Returns one of the snapshots of the series as an OutputSnapshot object.
+     * @param index The index of the snapshot.
+     * @return The resulting snapshot.
+     */
+    public OutputSnapshot getSnapshot(int index) {
+        checkIndex(index);
+        Position current = new Position();
+        Position target = new Position();
+        ServoVector speeds = new ServoVector();
+        for (int servo = 0; servo < NUMBER_OF_SERVOS; servo++) {
+            current.set(servo, currentAngles[servo][index]);
+            target.set(servo, targetAngles[servo][index]);
+            speeds.set(servo, currentSpeeds[servo][index]);
+        }
+        return OutputSnapshot.of(timestamps[index], twinId, executionId, current, target, speeds, moving[index]);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return index;
+    }
+
+    // Columns
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the timestamps of the snapshots, in the order of the series.
+     * @return A read-only view of the column, which is not copied.
+     */
+    public IntBuffer getTimestamps() {
+        return IntBuffer.wrap(timestamps, 0, size).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the current angles of a servo.
+     * @param servo The index of the servo.
+     * @return A read-only view of the column, which is not copied.
+     */
+    public IntBuffer getCurrentAngles(int servo) {
+        return IntBuffer.wrap(currentAngles[servo], 0, size).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the target angles of a servo.
+     * @param servo The index of the servo.
+     * @return A read-only view of the column, which is not copied.
+     */
+    public IntBuffer getTargetAngles(int servo) {
+        return IntBuffer.wrap(targetAngles[servo], 0, size).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the current speeds of a servo.
+     * @param servo The index of the servo.
+     * @return A read-only view of the column, which is not copied.
+     */
+    public DoubleBuffer getCurrentSpeeds(int servo) {
+        return DoubleBuffer.wrap(currentSpeeds[servo], 0, size).slice().asReadOnlyBuffer();
+    }
+
+    // Aggregates
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of snapshots in which the robot is moving.
+     * @return The number of snapshots.
+     */
+    public int countMoving() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += moving[i] ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the minimum current angle of a servo.
+     * @param servo The index of the servo.
+     * @return The minimum angle, or Integer.MAX_VALUE if the series is empty.
+     */
+    public int minCurrentAngle(int servo) {
+        int[] column = currentAngles[servo];
+        int result = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            result = Math.min(result, column[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the maximum current angle of a servo.
+     * @param servo The index of the servo.
+     * @return The maximum angle, or Integer.MIN_VALUE if the series is empty.
+     */
+    public int maxCurrentAngle(int servo) {
+        int[] column = currentAngles[servo];
+        int result = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            result = Math.max(result, column[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the mean current angle of a servo.
+     * @param servo The index of the servo.
+     * @return The mean angle, or NaN if the series is empty.
+     */
+    public double meanCurrentAngle(int servo) {
+        int[] column = currentAngles[servo];
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += column[i];
+        }
+        return size > 0 ? (double) sum / size : Double.NaN;
+    }
+
+    /**
+     * Returns the maximum difference between the target and the current angle of a servo, e.g., to find
+     * how far behind its targets the servo has been.
+     * @param servo The index of the servo.
+     * @return The maximum absolute difference, or 0 if the series is empty.
+     */
+    public int maxTrackingError(int servo) {
+        int[] current = currentAngles[servo];
+        int[] target = targetAngles[servo];
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            result = Math.max(result, Math.abs(target[i] - current[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the mean current speed of a servo.
+     * @param servo The index of the servo.
+     * @return The mean speed, or NaN if the series is empty.
+     */
+    public double meanCurrentSpeed(int servo) {
+        double[] column = currentSpeeds[servo];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += column[i];
+        }
+        return size > 0 ? sum / size : Double.NaN;
+    }
+
+    /**
+     * Returns the maximum current speed of a servo.
+     * @param servo The index of the servo.
+     * @return The maximum speed, or NaN if the series is empty.
+     */
+    public double maxCurrentSpeed(int servo) {
+        double[] column = currentSpeeds[servo];
+        double result = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            result = Math.max(result, column[i]);
+        }
+        return size > 0 ? result : Double.NaN;
+    }
+
+    public String toString() {
+        return "SnapshotSeries:" + twinId + ":" + executionId + "(" + size + " snapshots)";
+    }
+
+}
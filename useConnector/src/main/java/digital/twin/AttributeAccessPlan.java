@@ -0,0 +1,116 @@
+package digital.twin;
+
+import org.tzi.use.uml.mm.MAttribute;
+import org.tzi.use.uml.mm.MClass;
+
+/**
+ * An AttributeSpecification bound to a specific USE model class. The attributes of the specification
+ * are resolved once into their MAttribute handles, so objects of that class can be serialized and
+ * deserialized by walking arrays instead of looking up each attribute by name.
+ */
+public class AttributeAccessPlan {
+
+    private final MClass mclass;
+    private final String[] names;
+    private final MAttribute[] attributes;
+    private final AttributeType[] types;
+    private final int[] multiplicities;
+    private final String[][] fieldNames;
+
+    /**
+     * Resolves the attributes of an AttributeSpecification in a class of the USE model.
+     * @param specification The attributes to resolve.
+     * @param mclass The class where the attributes are defined.
+     */
+    AttributeAccessPlan(AttributeSpecification specification, MClass mclass) {
+        this.mclass = mclass;
+        int size = specification.attributeNames().size();
+        names = new String[size];
+        attributes = new MAttribute[size];
+        types = new AttributeType[size];
+        multiplicities = new int[size];
+        fieldNames = new String[size][];
+
+        int i = 0;
+        for (String name : specification.attributeNames()) {
+            names[i] = name;
+            attributes[i] = mclass.attribute(name, true);
+            types[i] = specification.typeOf(name);
+            multiplicities[i] = specification.multiplicityOf(name);
+            if (multiplicities[i] > 1) {
+                fieldNames[i] = new String[multiplicities[i]];
+                for (int j = 0; j < multiplicities[i]; j++) {
+                    fieldNames[i][j] = name + "_" + (j + 1);
+                }
+            } else {
+                fieldNames[i] = new String[] { name };
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Returns the class this plan is bound to.
+     * @return The USE model class.
+     */
+    public MClass getModelClass() {
+        return mclass;
+    }
+
+    /**
+     * Returns the number of attributes in this plan.
+     * @return The number of attributes.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the name of the i-th attribute.
+     * @param i The index of the attribute.
+     * @return The name of the attribute.
+     */
+    public String nameOf(int i) {
+        return names[i];
+    }
+
+    /**
+     * Returns the resolved handle of the i-th attribute.
+     * @param i The index of the attribute.
+     * @return The attribute, or null if the class has no attribute with that name.
+     */
+    public MAttribute attributeOf(int i) {
+        return attributes[i];
+    }
+
+    /**
+     * Returns the type of the i-th attribute.
+     * @param i The index of the attribute.
+     * @return The type of the attribute, as an AttributeType.
+     */
+    public AttributeType typeOf(int i) {
+        return types[i];
+    }
+
+    /**
+     * Returns the multiplicity of the i-th attribute.
+     * @param i The index of the attribute.
+     * @return The multiplicity of the attribute.
+     */
+    public int multiplicityOf(int i) {
+        return multiplicities[i];
+    }
+
+    /**
+     * Returns the name of the data lake field that stores the j-th value of the i-th attribute.
+     * Attributes with multiplicity 1 are stored with their own name, and the values of other
+     * attributes are stored as "name_1", "name_2", etc.
+     * @param i The index of the attribute.
+     * @param j The index of the value, starting at 0.
+     * @return The name of the field.
+     */
+    public String fieldNameOf(int i, int j) {
+        return fieldNames[i][j];
+    }
+
+}
@@ -1,6 +1,9 @@
 package digital.twin;
 
+import org.tzi.use.uml.mm.MClass;
+
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Daniel Pérez - University of Málaga
@@ -11,13 +14,15 @@ public class AttributeSpecification {
 
     private final Map<String, AttributeType> types;
     private final Map<String, Integer> multiplicities;
+    private final Map<MClass, AttributeAccessPlan> plans;
 
     /**
      * Default constructor.
      */
     public AttributeSpecification() {
-        types = new HashMap<>();
+        types = new LinkedHashMap<>();
         multiplicities = new HashMap<>();
+        plans = new ConcurrentHashMap<>();
     }
 
     /**
@@ -58,6 +63,7 @@ public class AttributeSpecification {
         }
         types.put(name, Objects.requireNonNull(type));
         multiplicities.put(name, multiplicity);
+        plans.clear();
     }
 
     /**
@@ -69,4 +75,14 @@ public class AttributeSpecification {
         set(name, type, 1);
     }
 
+    /**
+     * Binds this AttributeSpecification to a class of the USE model. Plans are cached, so the
+     * attributes are only resolved the first time each class is bound.
+     * @param mclass The class whose instances will be accessed through the plan.
+     * @return The access plan for the instances of <i>mclass</i>.
+     */
+    public AttributeAccessPlan bind(MClass mclass) {
+        return plans.computeIfAbsent(mclass, c -> new AttributeAccessPlan(this, c));
+    }
+
 }
@@ -1,5 +1,7 @@
 package digital.twin;
 
+import org.tzi.use.uml.ocl.value.*;
+
 /**
  * @author Daniel Pérez - University of Málaga
  * Types of each attribute in an AttributeSpecification.
@@ -32,6 +34,36 @@ public enum AttributeType {
         }
     }
 
+    /**
+     * Converts a USE value to a string to be stored on a Redis data lake, without going through
+     * the string representation of the value.
+     * @param value The USE value to convert.
+     * @return The value to be stored in Redis.
+     */
+    public String fromUseToRedisString(Value value) {
+        switch (this) {
+
+            case BOOLEAN:
+                return value instanceof BooleanValue && ((BooleanValue) value).value() ? "1" : "0";
+
+            case INTEGER:
+            case REAL:
+                if (value instanceof IntegerValue) {
+                    return Integer.toString(((IntegerValue) value).value());
+                } else if (value instanceof RealValue) {
+                    return Double.toString(((RealValue) value).value());
+                }
+                return value.toString();
+
+            case STRING:
+                return value instanceof StringValue ? ((StringValue) value).value() : value.toString();
+
+            default:
+                return "undefined";
+
+        }
+    }
+
     /**
      * Converts a USE value string to a string to be stored on a Redis data lake.
      * @param value The Redis value to convert, as a string returned by the Data Lake.
@@ -2,7 +2,7 @@ package digital.twin;
 
 import org.tzi.use.uml.sys.MObjectState;
 import pubsub.DTPubSub;
-import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 
 import java.util.Map;
 
@@ -24,7 +24,6 @@ public class CommandResultManager extends OutputManager {
     }
 
     protected String getObjectId(MObjectState objstate) {
-        useApi.updateDerivedValues();
         String twinId = useApi.getStringAttribute(objstate, "twinId");
         String executionId = useApi.getStringAttribute(objstate, "executionId");
         int commandId = useApi.getIntegerAttribute(objstate, "commandId");
@@ -36,10 +35,10 @@ public class CommandResultManager extends OutputManager {
     }
 
     protected void addObjectQueryRegisters(
-            Jedis jedis, String objectTypeAndId, Map<String, String> values) { }
+            Pipeline pipeline, String objectTypeAndId, Map<String, String> values) { }
 
     protected void addAttributeQueryRegisters(
-            Jedis jedis, String objectTypeAndId, String attributeName,
+            Pipeline pipeline, String objectTypeAndId, String attributeName,
             AttributeType type, String attributeValue) { }
 
     protected void cleanUpModel(MObjectState objstate) { }
@@ -3,7 +3,9 @@ package digital.twin;
 import org.tzi.use.api.UseSystemApi;
 import org.tzi.use.uml.sys.MObjectState;
 import org.tzi.use.uml.sys.MSystemException;
+import plugin.DriverConfig;
 import utils.DTLogger;
+import utils.Metrics;
 import utils.UseFacade;
 
 import java.util.Objects;
@@ -14,6 +16,9 @@ import java.util.Objects;
  */
 public class DTUseFacade extends UseFacade {
 
+    private final FastForwardKernel fastForwardKernel;
+    private final Metrics.Counter ticksCounter = Metrics.counter("clock.ticks");
+    private final Metrics.Histogram advanceTimeLatency = Metrics.histogram("clock.advanceTimeNanos");
     private MObjectState clock;
 
     /**
@@ -22,6 +27,8 @@ public class DTUseFacade extends UseFacade {
      */
     public DTUseFacade(UseSystemApi api) {
         super(api);
+        fastForwardKernel = DriverConfig.FAST_FORWARD_ENABLED
+                ? new FastForwardKernel(api, getDerivedValueTracker()) : null;
         clock = null;
     }
 
@@ -43,15 +50,28 @@ public class DTUseFacade extends UseFacade {
         setAttribute(clock, "now", value);
     }
 
+    /**
+     * Advances the model's clock. If enabled, the ticks are executed by the FastForwardKernel when
+     * possible, falling back to the clock's "run" operation otherwise.
+     * @param ticks The number of ticks to advance.
+     */
     public void advanceTime(int ticks) {
         if (clock == null) {
             clock = Objects.requireNonNull(getAnyObjectOfClass("Clock"));
         }
+        long start = System.nanoTime();
         try {
-            callOperation(clock, "run", ticks);
+            execute(() -> {
+                if (fastForwardKernel == null || !fastForwardKernel.run(clock, ticks)) {
+                    callOperation(clock, "run", ticks);
+                }
+                return null;
+            });
+            ticksCounter.add(ticks);
         } catch (MSystemException ex) {
             DTLogger.error("Error when advancing time:", ex);
         }
+        advanceTimeLatency.recordSince(start);
     }
 
 }
@@ -0,0 +1,350 @@
+package digital.twin;
+
+import org.tzi.use.api.UseSystemApi;
+import org.tzi.use.uml.mm.MAssociation;
+import org.tzi.use.uml.mm.MAssociationEnd;
+import org.tzi.use.uml.mm.MAttribute;
+import org.tzi.use.uml.mm.MClass;
+import org.tzi.use.uml.ocl.type.TypeFactory;
+import org.tzi.use.uml.ocl.value.*;
+import org.tzi.use.uml.sys.MObject;
+import org.tzi.use.uml.sys.MObjectState;
+import org.tzi.use.uml.sys.MSystemException;
+import org.tzi.use.uml.sys.MSystemState;
+import org.tzi.use.uml.sys.events.AttributeAssignedEvent;
+import org.tzi.use.uml.sys.events.ObjectCreatedEvent;
+import org.tzi.use.uml.sys.events.tags.EventContext;
+import utils.DerivedValueTracker;
+
+import java.util.*;
+
+/**
+ * Native implementation of <i>Clock.run(n)</i> for the BraccioRobot model. The state of the clock's
+ * active objects is loaded into primitive arrays, the <i>action()</i> operations of Servo,
+ * OutputSnapshotMonitor and CommandMonitor are executed in Java for all the ticks, and only the
+ * final state and the output snapshots are written back to the model.
+ * <p>
+ * The kernel only runs when its result is the same as executing the SOIL operations: every active
+ * object must be a Servo or one of these monitors, and the command monitors must be idle (no command
+ * being executed nor waiting to be executed). Otherwise, <i>run</i> returns false without changing
+ * the model, and the caller must fall back to the SOIL implementation.
+ */
+public class FastForwardKernel {
+
+    private static final int SERVO = 0;
+    private static final int SNAPSHOT_MONITOR = 1;
+    private static final int COMMAND_MONITOR = 2;
+
+    private final UseSystemApi api;
+    private final DerivedValueTracker derivedValues;
+
+    // Active objects, in the order in which the clock executes their actions
+    private MObject[] activeObjects;
+    private int[] kinds;
+    private int[] indexes;
+
+    // Servos
+    private MObject[] servos;
+    private boolean[] frozen;
+    private double[] currentAngles;
+    private int[] targetAngles;
+    private double[] currentSpeeds;
+    private Value[] angleValues;
+    private Value[] speedValues;
+    private boolean[] angleAssigned;
+    private boolean[] speedAssigned;
+
+    // Monitors
+    private MObject[] monitors;
+    private int[] timeForNextAction;
+    private int[] timeBetweenActions;
+    private MObject[] monitorRobots;
+    private int[][] robotServos;
+
+    /**
+     * Default constructor.
+     * @param api The USE API instance to interact with the currently displayed object diagram.
+     * @param derivedValues The tracker to record the changes made to the model, so that the derived
+     *      values they affect are updated.
+     */
+    public FastForwardKernel(UseSystemApi api, DerivedValueTracker derivedValues) {
+        this.api = api;
+        this.derivedValues = derivedValues;
+    }
+
+    /**
+     * Advances the clock by a number of ticks, if all its active objects can be simulated natively.
+     * Must be called from the model thread.
+     * @param clock The clock to advance.
+     * @param ticks The number of ticks to advance.
+     * @return true if the clock has been advanced, false if the model has not been modified and
+     *      the ticks must be executed through SOIL.
+     * @throws MSystemException If some error occurs within the USE API.
+     */
+    public boolean run(MObjectState clock, int ticks) throws MSystemException {
+        MSystemState state = api.getSystem().state();
+        Integer now = intValue(clock.attributeValue("now"));
+        Integer resolution = intValue(clock.attributeValue("resolution"));
+        if (now == null || resolution == null || !load(state, clock.object())) {
+            return false;
+        }
+
+        List<MObjectState> snapshots = new ArrayList<>();
+        for (int tick = 0; tick < ticks; tick++) {
+            now += resolution;
+            for (int k = 0; k < activeObjects.length; k++) {
+                int i = indexes[k];
+                if (kinds[k] == SERVO) {
+                    servoAction(i, resolution);
+                } else {
+                    timeForNextAction[i] -= resolution;
+                    if (timeForNextAction[i] <= 0) {
+                        if (kinds[k] == SNAPSHOT_MONITOR) {
+                            snapshots.add(createSnapshot(state, i, now));
+                        }
+                        // An idle command monitor finds no command to execute
+                        timeForNextAction[i] += timeBetweenActions[i];
+                    }
+                }
+            }
+        }
+
+        // Write back the final state
+        if (ticks > 0) {
+            assign(state, clock.object(), "now", IntegerValue.valueOf(now));
+            for (int i = 0; i < servos.length; i++) {
+                if (angleAssigned[i]) {
+                    assign(state, servos[i], "currentAngle", new RealValue(currentAngles[i]));
+                }
+                if (speedAssigned[i]) {
+                    assign(state, servos[i], "currentSpeed", new RealValue(currentSpeeds[i]));
+                }
+            }
+            for (int i = 0; i < monitors.length; i++) {
+                assign(state, monitors[i], "timeForNextAction", IntegerValue.valueOf(timeForNextAction[i]));
+            }
+        }
+        for (MObjectState snapshot : snapshots) {
+            api.getSystem().getEventBus().post(
+                    new ObjectCreatedEvent(EventContext.NORMAL_EXECUTION, snapshot.object()));
+        }
+        return true;
+    }
+
+    /**
+     * Executes <i>Servo.action()</i> on the i-th servo.
+     */
+    private void servoAction(int i, int resolution) {
+        if (frozen[i]) {
+            return;
+        }
+        double displacement = currentSpeeds[i] * resolution / 1000;
+        if (currentAngles[i] < targetAngles[i]) {
+            currentAngles[i] = Math.min(targetAngles[i], currentAngles[i] + displacement);
+            angleAssigned[i] = true;
+        } else if (currentAngles[i] > targetAngles[i]) {
+            currentAngles[i] = Math.max(targetAngles[i], currentAngles[i] - displacement);
+            angleAssigned[i] = true;
+        }
+        if (currentAngles[i] == targetAngles[i]) {
+            currentSpeeds[i] = 0.0;
+            speedAssigned[i] = true;
+        }
+    }
+
+    /**
+     * Executes <i>OutputSnapshotMonitor.periodicAction()</i> on the i-th monitor.
+     */
+    private MObjectState createSnapshot(MSystemState state, int i, int now) throws MSystemException {
+        MClass snapshotClass = api.getSystem().model().getClass("OutputBraccioSnapshot");
+        MObject snapshot = state.createObject(snapshotClass, state.uniqueObjectNameForClass(snapshotClass));
+        derivedValues.objectCreated(snapshot);
+        MObjectState snapshotState = snapshot.state(state);
+        MObjectState robot = monitorRobots[i].state(state);
+
+        int[] robotServos = this.robotServos[i];
+        List<Value> angles = new ArrayList<>(robotServos.length);
+        List<Value> targets = new ArrayList<>(robotServos.length);
+        List<Value> speeds = new ArrayList<>(robotServos.length);
+        boolean moving = false;
+        for (int s : robotServos) {
+            angles.add(angleAssigned[s] ? new RealValue(currentAngles[s]) : angleValues[s]);
+            targets.add(IntegerValue.valueOf(targetAngles[s]));
+            speeds.add(speedAssigned[s] ? new RealValue(currentSpeeds[s]) : speedValues[s]);
+            moving |= currentSpeeds[s] > 0;
+        }
+
+        snapshotState.setAttributeValue(attribute(snapshotClass, "twinId"), robot.attributeValue("twinId"));
+        snapshotState.setAttributeValue(
+                attribute(snapshotClass, "executionId"), robot.attributeValue("executionId"));
+        snapshotState.setAttributeValue(attribute(snapshotClass, "timestamp"), IntegerValue.valueOf(now));
+        snapshotState.setAttributeValue(attribute(snapshotClass, "currentAngles"),
+                new SequenceValue(TypeFactory.mkReal(), angles));
+        snapshotState.setAttributeValue(attribute(snapshotClass, "targetAngles"),
+                new SequenceValue(TypeFactory.mkInteger(), targets));
+        snapshotState.setAttributeValue(attribute(snapshotClass, "currentSpeeds"),
+                new SequenceValue(TypeFactory.mkReal(), speeds));
+        snapshotState.setAttributeValue(attribute(snapshotClass, "moving"), BooleanValue.get(moving));
+        return snapshotState;
+    }
+
+    /**
+     * Loads the state of the active objects of a clock.
+     * @return false if some active object cannot be simulated natively.
+     */
+    private boolean load(MSystemState state, MObject clock) {
+        List<MObject> ao = navigate(state, clock, "Time", "ao");
+        activeObjects = ao.toArray(new MObject[0]);
+        kinds = new int[activeObjects.length];
+        indexes = new int[activeObjects.length];
+        List<MObject> servoList = new ArrayList<>();
+        List<MObject> monitorList = new ArrayList<>();
+        for (int k = 0; k < activeObjects.length; k++) {
+            String className = activeObjects[k].cls().name();
+            switch (className) {
+                case "Servo":
+                    kinds[k] = SERVO;
+                    indexes[k] = servoList.size();
+                    servoList.add(activeObjects[k]);
+                    break;
+                case "OutputSnapshotMonitor":
+                case "CommandMonitor":
+                    kinds[k] = className.equals("CommandMonitor") ? COMMAND_MONITOR : SNAPSHOT_MONITOR;
+                    indexes[k] = monitorList.size();
+                    monitorList.add(activeObjects[k]);
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return loadServos(state, servoList) && loadMonitors(state, monitorList);
+    }
+
+    private boolean loadServos(MSystemState state, List<MObject> servoList) {
+        int n = servoList.size();
+        servos = servoList.toArray(new MObject[0]);
+        frozen = new boolean[n];
+        currentAngles = new double[n];
+        targetAngles = new int[n];
+        currentSpeeds = new double[n];
+        angleValues = new Value[n];
+        speedValues = new Value[n];
+        angleAssigned = new boolean[n];
+        speedAssigned = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            MObjectState servo = servos[i].state(state);
+            List<MObject> robot = navigate(state, servos[i], "Parts", "robot");
+            Boolean isFrozen = robot.isEmpty() ? null
+                    : boolValue(robot.get(0).state(state).attributeValue("isFrozen"));
+            Double angle = realValue(servo.attributeValue("currentAngle"));
+            Integer target = intValue(servo.attributeValue("targetAngle"));
+            Double speed = realValue(servo.attributeValue("currentSpeed"));
+            if (isFrozen == null || angle == null || target == null || speed == null) {
+                return false;
+            }
+            frozen[i] = isFrozen;
+            currentAngles[i] = angle;
+            targetAngles[i] = target;
+            currentSpeeds[i] = speed;
+            angleValues[i] = servo.attributeValue("currentAngle");
+            speedValues[i] = servo.attributeValue("currentSpeed");
+        }
+        return true;
+    }
+
+    private boolean loadMonitors(MSystemState state, List<MObject> monitorList) {
+        int n = monitorList.size();
+        monitors = monitorList.toArray(new MObject[0]);
+        timeForNextAction = new int[n];
+        timeBetweenActions = new int[n];
+        monitorRobots = new MObject[n];
+        robotServos = new int[n][];
+        List<MObject> servoList = Arrays.asList(servos);
+        for (int i = 0; i < n; i++) {
+            MObjectState monitor = monitors[i].state(state);
+            Integer time = intValue(monitor.attributeValue("timeForNextAction"));
+            Integer period = intValue(monitor.attributeValue("timeBetweenActions"));
+            List<MObject> robot = navigate(state, monitors[i], "Monitoring", "robot");
+            if (time == null || period == null || robot.isEmpty()) {
+                return false;
+            }
+            timeForNextAction[i] = time;
+            timeBetweenActions[i] = period;
+            monitorRobots[i] = robot.get(0);
+
+            if (monitors[i].cls().name().equals("CommandMonitor")) {
+                if (!navigate(state, monitors[i], "CommandExecution", "currentCommand").isEmpty()
+                        || hasPendingCommands(state)) {
+                    return false;
+                }
+            } else {
+                // The snapshots read the servos of the robot, which must be simulated as well
+                List<MObject> parts = navigate(state, monitorRobots[i], "Parts", "servo");
+                robotServos[i] = new int[parts.size()];
+                for (int s = 0; s < parts.size(); s++) {
+                    robotServos[i][s] = servoList.indexOf(parts.get(s));
+                    if (robotServos[i][s] < 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean hasPendingCommands(MSystemState state) {
+        MClass commandClass = api.getSystem().model().getClass("Command");
+        for (MObject command : state.objectsOfClassAndSubClasses(commandClass)) {
+            Boolean isProcessed = boolValue(command.state(state).attributeValue("isProcessed"));
+            if (isProcessed == null || !isProcessed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Auxiliary methods
+    // --------------------------------------------------------------------------------------------
+
+    private List<MObject> navigate(MSystemState state, MObject source, String association, String role) {
+        MAssociation assoc = api.getSystem().model().getAssociation(association);
+        MAssociationEnd sourceEnd = null;
+        MAssociationEnd targetEnd = null;
+        for (MAssociationEnd end : assoc.associationEnds()) {
+            if (end.nameAsRolename().equals(role)) {
+                targetEnd = end;
+            } else {
+                sourceEnd = end;
+            }
+        }
+        return state.getNavigableObjects(source, sourceEnd, targetEnd, Collections.emptyList());
+    }
+
+    private void assign(MSystemState state, MObject object, String attributeName, Value value) {
+        MAttribute attribute = attribute(object.cls(), attributeName);
+        object.state(state).setAttributeValue(attribute, value);
+        derivedValues.attributeChanged(object, attribute);
+        api.getSystem().getEventBus().post(
+                new AttributeAssignedEvent(EventContext.NORMAL_EXECUTION, object, attribute, value));
+    }
+
+    private static MAttribute attribute(MClass mclass, String attributeName) {
+        return mclass.attribute(attributeName, true);
+    }
+
+    private static Integer intValue(Value v) {
+        return v instanceof IntegerValue ? ((IntegerValue) v).value() : null;
+    }
+
+    private static Double realValue(Value v) {
+        if (v instanceof IntegerValue) {
+            return (double) ((IntegerValue) v).value();
+        }
+        return v instanceof RealValue ? ((RealValue) v).value() : null;
+    }
+
+    private static Boolean boolValue(Value v) {
+        return v instanceof BooleanValue ? ((BooleanValue) v).value() : null;
+    }
+
+}
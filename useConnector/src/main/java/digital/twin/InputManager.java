@@ -2,28 +2,99 @@ package digital.twin;
 
 import org.tzi.use.uml.sys.MObjectState;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.util.SafeEncoder;
+import plugin.DriverConfig;
 import utils.DTLogger;
+import utils.Metrics;
+import utils.RedisScript;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
  * Class that retrieves all objects from a data lake and converts them to USE objects.
+ * Objects are claimed from the "UNPROCESSED" sorted set with a blocking pop and kept in the
+ * "PROCESSING" sorted set until they are saved to the USE model, which acknowledges them by moving
+ * them to the "PROCESSED" sorted set.
+ * The sorted sets are partitioned by twin ("[objectType]:[twinId]_UNPROCESSED"), and the objects of each
+ * twin are claimed and saved separately, so that the objects of different twins can be saved in parallel.
+ * Objects are moved between sorted sets by Lua scripts, so each transition is atomic and takes a single
+ * round trip.
+ * Intake is bounded: only a limited number of objects of each twin are claimed until they are saved, so
+ * a flood of objects stays queued in the Data Lake, and objects are saved to the USE model in small
+ * batches, so that other model tasks (e.g., clock ticks) run between them.
+ * A batch that cannot be saved is claimed again at the head of its twin's queue. A batch saved to the
+ * USE model whose acknowledgement fails is only acknowledged again, before the next batch of the twin.
+ * The twins left with claimed objects or pending acknowledgements are reported again by
+ * <i>claimNewObjects</i>, so they are retried even if no new objects arrive. A batch or acknowledgement
+ * that fails DriverConfig.MAX_BATCH_ATTEMPTS times in a row is skipped, so it does not block its twin.
  */
 public abstract class InputManager {
 
     protected static final String TIMESTAMP = "timestamp";
     protected static final String WHEN_PROCESSED = "whenProcessed";
 
+    // Moves up to ARGV[3 + i] objects from the "UNPROCESSED" sorted set of the i-th twin (KEYS[2i - 1]) to
+    // its "PROCESSING" sorted set (KEYS[2i]), counting the object already popped from the ARGV[1]-th twin
+    // (ARGV[2], with score ARGV[3]), which is also moved. Returns the member and score of the moved objects
+    // of each twin.
+    private static final RedisScript CLAIM_SCRIPT = new RedisScript(
+            "local first = tonumber(ARGV[1])\n"
+            + "redis.call('ZADD', KEYS[2 * first], ARGV[3], ARGV[2])\n"
+            + "local result = {}\n"
+            + "for i = 1, #KEYS / 2 do\n"
+            + "  local count = tonumber(ARGV[3 + i])\n"
+            + "  if i == first then count = count - 1 end\n"
+            + "  local popped = {}\n"
+            + "  if count > 0 then popped = redis.call('ZPOPMIN', KEYS[2 * i - 1], count) end\n"
+            + "  for j = 1, #popped, 2 do\n"
+            + "    redis.call('ZADD', KEYS[2 * i], popped[j + 1], popped[j])\n"
+            + "  end\n"
+            + "  result[i] = popped\n"
+            + "end\n"
+            + "return result\n");
+
+    // Puts an object popped from the "UNPROCESSED" sorted set (KEYS[1]) back with score ARGV[2], unless it
+    // has already been moved to the "PROCESSING" sorted set (KEYS[2]). Returns 1 if the object is put back.
+    private static final RedisScript UNCLAIM_SCRIPT = new RedisScript(
+            "if redis.call('ZSCORE', KEYS[2], ARGV[1]) then return 0 end\n"
+            + "redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])\n"
+            + "return 1\n");
+
+    // Moves the objects KEYS[3..] from the "PROCESSING" sorted set (KEYS[1]) to the "PROCESSED" sorted
+    // set (KEYS[2]) with scores ARGV[3..], and sets their field ARGV[1] to ARGV[2].
+    private static final RedisScript COMPLETE_SCRIPT = new RedisScript(
+            "for i = 3, #KEYS do\n"
+            + "  redis.call('ZREM', KEYS[1], KEYS[i])\n"
+            + "  redis.call('ZADD', KEYS[2], ARGV[i], KEYS[i])\n"
+            + "  redis.call('HSET', KEYS[i], ARGV[1], ARGV[2])\n"
+            + "end\n"
+            + "return #KEYS - 2\n");
+
     private static int instanceCounter = 0;
 
     protected final AttributeSpecification attributeSpecification;
     protected final DTUseFacade useApi;
     private final String channel;
     private final String objectType;
+    private final List<String> twinIds;
+    private final Map<String, String> twinIdsByQueue;
+    private final Map<String, Deque<Tuple>> claimedObjects;
+    private final Map<String, Queue<Acknowledgement>> pendingAcknowledgements;
+    private final Map<String, Integer> failedBatchAttempts;
+    private final Set<String> twinsToSave;
+    private final Metrics.Counter roundTrips;
+    private final Metrics.Histogram batchLatency;
+    private final Metrics.Histogram roundTripsPerBatch;
+    private final Metrics.Histogram receivedBytesPerBatch;
 
     /**
      * Default constructor.
@@ -36,6 +107,18 @@ public abstract class InputManager {
         this.useApi = useApi;
         this.channel = channel;
         this.objectType = objectType;
+        twinIds = new CopyOnWriteArrayList<>();
+        twinIdsByQueue = new ConcurrentHashMap<>();
+        claimedObjects = new ConcurrentHashMap<>();
+        pendingAcknowledgements = new ConcurrentHashMap<>();
+        failedBatchAttempts = new ConcurrentHashMap<>();
+        twinsToSave = ConcurrentHashMap.newKeySet();
+        roundTrips = Metrics.counter("input." + objectType + ".roundTrips");
+        batchLatency = Metrics.histogram("input." + objectType + ".batchNanos");
+        roundTripsPerBatch = Metrics.histogram("input." + objectType + ".roundTripsPerBatch");
+        receivedBytesPerBatch = Metrics.histogram("input." + objectType + ".receivedBytesPerBatch");
+        Metrics.gauge("input." + objectType + ".claimed",
+                () -> claimedObjects.values().stream().mapToLong(Queue::size).sum());
     }
 
     /**
@@ -47,24 +130,330 @@ public abstract class InputManager {
     }
 
     /**
-     * Retrieves the objects of type <i>objectType</i> from the Data Lake
-     * @return The list of objects available in the Data Lake.
+     * Returns the type of the Data Lake objects this InputManager deserializes.
+     * @return The prefix of the identifiers of the deserialized objects.
+     */
+    public String getObjectType() {
+        return objectType;
+    }
+
+    /**
+     * Returns the key of one of the sorted sets where the objects of a twin are queued.
+     * @param twinId The ID of the twin.
+     * @param queue The name of the sorted set: "UNPROCESSED", "PROCESSING" or "PROCESSED".
+     * @return The key of the sorted set.
+     */
+    public String getQueueKey(String twinId, String queue) {
+        return objectType + ":" + twinId + "_" + queue;
+    }
+
+    /**
+     * Starts claiming the objects of a twin from the Data Lake.
+     * @param twinId The ID of the twin.
+     */
+    public void addTwin(String twinId) {
+        if (twinIdsByQueue.putIfAbsent(getQueueKey(twinId, "UNPROCESSED"), twinId) == null) {
+            claimedObjects.put(twinId, new ConcurrentLinkedDeque<>());
+            pendingAcknowledgements.put(twinId, new ConcurrentLinkedQueue<>());
+            twinIds.add(twinId);
+        }
+    }
+
+    /**
+     * Returns the twins whose objects are claimed from the Data Lake.
+     * @return The IDs of the twins.
+     */
+    public List<String> getTwinIds() {
+        return Collections.unmodifiableList(twinIds);
+    }
+
+    /**
+     * Loads the scripts used to move objects between the sorted sets in the Data Lake.
+     * @param jedis An instance of the Jedis client to access the data lake.
+     */
+    public static void loadScripts(Jedis jedis) {
+        CLAIM_SCRIPT.load(jedis);
+        UNCLAIM_SCRIPT.load(jedis);
+        COMPLETE_SCRIPT.load(jedis);
+    }
+
+    /**
+     * Queues the objects that were claimed from the Data Lake but never acknowledged, e.g., because
+     * the connection ended before they could be saved to the USE model.
+     * @param jedis An instance of the Jedis client to access the data lake.
+     */
+    public void recoverClaimedObjects(Jedis jedis) {
+        for (String twinId : twinIds) {
+            Set<Tuple> recovered = jedis.zrangeWithScores(getQueueKey(twinId, "PROCESSING"), 0, -1);
+            if (!recovered.isEmpty()) {
+                claimedObjects.get(twinId).addAll(recovered);
+                twinsToSave.add(twinId);
+            }
+        }
+    }
+
+    /**
+     * Waits until new objects of type <i>objectType</i> appear in the Data Lake and claims them.
+     * Claimed objects are saved to the USE model on the next call to <i>saveObjectsToUseModel</i>
+     * for their twin. Twins that already have <i>maxObjects</i> claimed objects waiting to be saved are
+     * skipped, so their new objects stay in the Data Lake; if all the twins are skipped, this method waits
+     * DriverConfig.CLAIM_RETRY_DELAY_MS milliseconds and claims nothing.
+     * @param jedis An instance of the Jedis client to access the data lake.
+     * @param timeoutSeconds Maximum number of seconds to wait for new objects.
+     * @param maxObjects Maximum number of claimed objects of each twin waiting to be saved.
+     * @return The IDs of the twins with new claimed objects, and of the twins whose claimed objects or
+     *      acknowledgements are still waiting to be saved (e.g., after a failed save).
+     */
+    public List<String> claimNewObjects(Jedis jedis, int timeoutSeconds, int maxObjects)
+            throws InterruptedException {
+        if (twinIds.isEmpty()) {
+            TimeUnit.SECONDS.sleep(timeoutSeconds);
+            return Collections.emptyList();
+        }
+        List<String> twins = new ArrayList<>();
+        List<Integer> capacities = new ArrayList<>();
+        for (String twinId : twinIds) {
+            int capacity = maxObjects - claimedObjects.get(twinId).size();
+            if (capacity > 0) {
+                twins.add(twinId);
+                capacities.add(capacity);
+            }
+        }
+        if (twins.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(DriverConfig.CLAIM_RETRY_DELAY_MS);
+            return new ArrayList<>(twinsToSave);
+        }
+        byte[][] keys = new byte[twins.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = SafeEncoder.encode(getQueueKey(twins.get(i), "UNPROCESSED"));
+        }
+
+        // Redis cannot block inside a script, so the first object is awaited with a blocking pop.
+        // The binary variant is used because the String variant fails when the wait times out.
+        List<byte[]> first = jedis.bzpopmin(timeoutSeconds, keys);
+        roundTrips.increment();
+        if (first == null) {
+            return new ArrayList<>(twinsToSave);
+        }
+        String firstTwinId = twinIdsByQueue.get(SafeEncoder.encode(first.get(0)));
+        Tuple firstObject = new Tuple(first.get(1), Double.valueOf(SafeEncoder.encode(first.get(2))));
+
+        // Move the first object and the rest of the objects of every twin to the "PROCESSING" sorted sets
+        List<String> scriptKeys = new ArrayList<>(2 * twins.size());
+        for (String twinId : twins) {
+            scriptKeys.add(getQueueKey(twinId, "UNPROCESSED"));
+            scriptKeys.add(getQueueKey(twinId, "PROCESSING"));
+        }
+        List<String> scriptArgs = new ArrayList<>(3 + twins.size());
+        scriptArgs.add((twins.indexOf(firstTwinId) + 1) + "");
+        scriptArgs.add(SafeEncoder.encode(first.get(1)));
+        scriptArgs.add(SafeEncoder.encode(first.get(2)));
+        for (int capacity : capacities) {
+            scriptArgs.add(capacity + "");
+        }
+        List<List<String>> moved;
+        try {
+            @SuppressWarnings("unchecked")
+            List<List<String>> result = (List<List<String>>) CLAIM_SCRIPT.eval(jedis, scriptKeys, scriptArgs);
+            moved = result;
+        } catch (RuntimeException ex) {
+            unclaim(jedis, firstTwinId, firstObject);
+            throw ex;
+        }
+        roundTrips.increment();
+
+        Map<String, List<Tuple>> claimed = new LinkedHashMap<>();
+        claimed.put(firstTwinId, new ArrayList<>(Collections.singletonList(firstObject)));
+        for (int i = 0; i < twins.size(); i++) {
+            List<String> popped = moved.get(i);
+            for (int j = 0; j < popped.size(); j += 2) {
+                claimed.computeIfAbsent(twins.get(i), k -> new ArrayList<>())
+                        .add(new Tuple(popped.get(j), Double.valueOf(popped.get(j + 1))));
+            }
+        }
+        for (Map.Entry<String, List<Tuple>> twinClaimed : claimed.entrySet()) {
+            claimedObjects.get(twinClaimed.getKey()).addAll(twinClaimed.getValue());
+        }
+        Set<String> result = new LinkedHashSet<>(claimed.keySet());
+        result.addAll(twinsToSave);
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Puts an object popped from the "UNPROCESSED" sorted set of a twin back after the script that claims
+     * it fails. If the script did move it to the "PROCESSING" sorted set, or the Data Lake cannot be
+     * reached, the object is kept as claimed in memory instead, so that it is saved anyway.
+     * @param jedis An instance of the Jedis client to access the data lake.
+     * @param twinId The ID of the twin the object belongs to.
+     * @param object The key and score of the object.
      */
-    public Set<String> getUnprocessedDLObjects(Jedis jedis) {
-        return jedis.zrange(objectType + "_UNPROCESSED", 0, -1);
+    private void unclaim(Jedis jedis, String twinId, Tuple object) {
+        try {
+            Object queued = UNCLAIM_SCRIPT.eval(jedis,
+                    Arrays.asList(getQueueKey(twinId, "UNPROCESSED"), getQueueKey(twinId, "PROCESSING")),
+                    Arrays.asList(object.getElement(), object.getScore() + ""));
+            if (Long.valueOf(0).equals(queued)) {
+                claimedObjects.get(twinId).add(object);
+            }
+        } catch (RuntimeException ex) {
+            DTLogger.error(getChannel(), "Could not queue " + object.getElement()
+                    + " again, it will be saved from memory:", ex);
+            claimedObjects.get(twinId).add(object);
+        }
     }
 
     /**
-     * Saves all the objects in the Data Lake to the USE model.
+     * Saves all the objects of a twin claimed from the Data Lake to the USE model, in model tasks of up to
+     * DriverConfig.COMMANDS_PER_MODEL_TASK objects. The objects of each twin are saved in order; objects
+     * of different twins may be saved concurrently.
      * @param jedis An instance of the Jedis client to access the data lake.
+     * @param twinId The ID of the twin whose objects to save.
      */
-    public void saveObjectsToUseModel(Jedis jedis) {
-        Set<String> unprocessedCommands = getUnprocessedDLObjects(jedis);
-        for (String key : unprocessedCommands) {
-            saveOneObject(jedis, key);
+    public void saveObjectsToUseModel(Jedis jedis, String twinId) {
+        Deque<Tuple> twinClaimedObjects = claimedObjects.get(twinId);
+        if (twinClaimedObjects == null) {
+            DTLogger.warn(getChannel(), "Unknown twin: " + twinId);
+            return;
+        }
+        synchronized (twinClaimedObjects) {
+            twinsToSave.remove(twinId);
+            try {
+                saveClaimedObjects(jedis, twinId, twinClaimedObjects);
+            } catch (RuntimeException ex) {
+                // Report the twin again once the wait for new objects times out
+                twinsToSave.add(twinId);
+                throw ex;
+            }
+        }
+    }
+
+    private void saveClaimedObjects(Jedis jedis, String twinId, Deque<Tuple> twinClaimedObjects) {
+        Queue<Acknowledgement> twinAcknowledgements = pendingAcknowledgements.get(twinId);
+        Acknowledgement pending;
+        // The round trips of the retried acknowledgements are counted in the next batch
+        int retriedRoundTrips = 0;
+        while ((pending = twinAcknowledgements.peek()) != null) {
+            try {
+                retriedRoundTrips++;
+                acknowledge(jedis, twinId, pending);
+            } catch (RuntimeException ex) {
+                if (++pending.attempts < DriverConfig.MAX_BATCH_ATTEMPTS) {
+                    throw ex;
+                }
+                DTLogger.error(getChannel(), "Could not acknowledge " + pending.objects.size()
+                        + " object(s) of twin " + twinId + " after " + pending.attempts
+                        + " attempts, they stay in the PROCESSING queue: " + getKeys(pending.objects), ex);
+            }
+            twinAcknowledgements.remove();
+        }
+        while (true) {
+            List<Tuple> objects = new ArrayList<>(DriverConfig.COMMANDS_PER_MODEL_TASK);
+            Tuple claimed;
+            while (objects.size() < DriverConfig.COMMANDS_PER_MODEL_TASK
+                    && (claimed = twinClaimedObjects.poll()) != null) {
+                objects.add(claimed);
+            }
+            if (objects.isEmpty()) {
+                return;
+            }
+            saveBatch(jedis, twinId, twinClaimedObjects, objects, retriedRoundTrips);
+            retriedRoundTrips = 0;
         }
     }
 
+    private void saveBatch(Jedis jedis, String twinId, Deque<Tuple> twinClaimedObjects, List<Tuple> objects,
+                           int previousRoundTrips) {
+        long start = System.nanoTime();
+        int batchRoundTrips = previousRoundTrips;
+
+        // Retrieve the objects in a single round trip, then create all of them in a single model task
+        long receivedBytes = 0;
+        int time;
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Map<String, String>>> responses = new ArrayList<>(objects.size());
+            for (Tuple t : objects) {
+                responses.add(pipeline.hgetAll(t.getElement()));
+            }
+            batchRoundTrips++;
+            roundTrips.increment();
+            pipeline.sync();
+            List<Map<String, String>> hashes = new ArrayList<>(objects.size());
+            for (Response<Map<String, String>> response : responses) {
+                Map<String, String> hash = response.get();
+                for (Map.Entry<String, String> entry : hash.entrySet()) {
+                    receivedBytes += entry.getKey().length() + entry.getValue().length();
+                }
+                hashes.add(hash);
+            }
+            time = useApi.execute(() -> {
+                for (int i = 0; i < objects.size(); i++) {
+                    saveOneObject(objects.get(i).getElement(), hashes.get(i));
+                }
+                return useApi.getCurrentTime();
+            });
+        } catch (RuntimeException ex) {
+            int attempts = failedBatchAttempts.merge(twinId, 1, Integer::sum);
+            if (attempts >= DriverConfig.MAX_BATCH_ATTEMPTS) {
+                // The batch fails every time (e.g., one of its keys holds another type), so skip it
+                failedBatchAttempts.remove(twinId);
+                DTLogger.error(getChannel(), "Could not save " + objects.size() + " object(s) of twin " + twinId
+                        + " after " + attempts + " attempts, they stay in the PROCESSING queue: "
+                        + getKeys(objects), ex);
+                return;
+            }
+            // Nothing has been saved, so the batch is saved again before the objects claimed after it
+            for (int i = objects.size() - 1; i >= 0; i--) {
+                twinClaimedObjects.addFirst(objects.get(i));
+            }
+            throw ex;
+        }
+        failedBatchAttempts.remove(twinId);
+
+        // The objects are in the USE model now, so only the acknowledgement is retried if it fails
+        Acknowledgement acknowledgement = new Acknowledgement(objects, time);
+        try {
+            batchRoundTrips++;
+            acknowledge(jedis, twinId, acknowledgement);
+        } catch (RuntimeException ex) {
+            pendingAcknowledgements.get(twinId).add(acknowledgement);
+            throw ex;
+        }
+        roundTripsPerBatch.record(batchRoundTrips);
+        receivedBytesPerBatch.record(receivedBytes);
+        batchLatency.recordSince(start);
+    }
+
+    private static List<String> getKeys(List<Tuple> objects) {
+        List<String> keys = new ArrayList<>(objects.size());
+        for (Tuple t : objects) {
+            keys.add(t.getElement());
+        }
+        return keys;
+    }
+
+    /**
+     * Acknowledges a batch of objects saved to the USE model: moves them from the "PROCESSING" queue to
+     * the "PROCESSED" queue, and sets whenProcessed to indicate when they were saved.
+     * @param jedis An instance of the Jedis client to access the data lake.
+     * @param twinId The ID of the twin the objects belong to.
+     * @param acknowledgement The objects to acknowledge.
+     */
+    private void acknowledge(Jedis jedis, String twinId, Acknowledgement acknowledgement) {
+        List<String> scriptKeys = new ArrayList<>(acknowledgement.objects.size() + 2);
+        List<String> scriptArgs = new ArrayList<>(acknowledgement.objects.size() + 2);
+        scriptKeys.add(getQueueKey(twinId, "PROCESSING"));
+        scriptKeys.add(getQueueKey(twinId, "PROCESSED"));
+        scriptArgs.add(WHEN_PROCESSED);
+        scriptArgs.add(acknowledgement.time + "");
+        for (Tuple t : acknowledgement.objects) {
+            scriptKeys.add(t.getElement());
+            scriptArgs.add(t.getScore() + "");
+        }
+        roundTrips.increment();
+        COMPLETE_SCRIPT.eval(jedis, scriptKeys, scriptArgs);
+    }
+
     /**
      * Returns the name of the class a Redis hash should be converted to.
      * @param hash The Redis hash to convert.
@@ -74,25 +463,27 @@ public abstract class InputManager {
 
     /**
      * Auxiliary method to store the object in the USE model, extracted from the Data Lake.
-     * @param jedis An instance of the Jedis client to access the data lake.
+     * Must be called from the model thread.
      * @param key The key of the object to store.
+     * @param hash The contents of the object in the Data Lake.
      */
-    private synchronized void saveOneObject(Jedis jedis, String key) {
-        Map<String, String> hash = jedis.hgetAll(key);
+    void saveOneObject(String key, Map<String, String> hash) {
         try {
             MObjectState objstate = useApi.createObject(
                     getTargetClass(hash), objectType + ++instanceCounter);
-            for (String attr : attributeSpecification.attributeNames()) {
-                AttributeType type = attributeSpecification.typeOf(attr);
-                int multiplicity = attributeSpecification.multiplicityOf(attr);
+            AttributeAccessPlan plan = attributeSpecification.bind(objstate.object().cls());
+            for (int a = 0; a < plan.size(); a++) {
+                String attr = plan.nameOf(a);
+                AttributeType type = plan.typeOf(a);
+                int multiplicity = plan.multiplicityOf(a);
                 if (multiplicity > 1) {
                     int numberOfValues = getNumberOfValues(hash, attr);
                     if (numberOfValues == multiplicity) {
                         List<Object> values = new ArrayList<>();
-                        for (int i = 1; i <= multiplicity; i++) {
-                            values.add(type.fromRedisStringToObject(hash.get(attr + "_" + i)));
+                        for (int i = 0; i < multiplicity; i++) {
+                            values.add(type.fromRedisStringToObject(hash.get(plan.fieldNameOf(a, i))));
                         }
-                        useApi.setAttribute(objstate, attr, values);
+                        useApi.setAttribute(objstate, plan.attributeOf(a), values);
                     } else {
                         DTLogger.warn(getChannel(),
                                 "Error saving input object " + key + ": "
@@ -101,27 +492,17 @@ public abstract class InputManager {
                     }
                 } else {
                     Object value = type.fromRedisStringToObject(hash.get(attr));
-                    useApi.setAttribute(objstate, attr, value);
+                    useApi.setAttribute(objstate, plan.attributeOf(a), value);
                 }
             }
 
             // Save timestamp
             useApi.setAttribute(objstate, TIMESTAMP, useApi.getCurrentTime());
 
-            DTLogger.info(getChannel(), "Saved input object: " + key);
-            useApi.updateDerivedValues();
+            DTLogger.info(getChannel(), "Saved input object: ", key);
         } catch (Exception ex) {
             DTLogger.error(getChannel(), "Could not create object: " + ex.getMessage());
         }
-
-        // Move object from the "UNPROCESSED" queue to the "PROCESSED" queue.
-        double score = jedis.zscore(objectType + "_UNPROCESSED", key);
-        jedis.zrem(objectType + "_UNPROCESSED", key);
-        jedis.zadd(objectType + "_PROCESSED", score, key);
-
-
-        // Set whenProcessed to indicate when this instance has been saved to the USE model.
-        jedis.hset(key, WHEN_PROCESSED, useApi.getCurrentTime() + "");
     }
 
     private int getNumberOfValues(Map<String, String> hash, String attribute) {
@@ -132,4 +513,22 @@ public abstract class InputManager {
         return result;
     }
 
+    /**
+     * A batch of objects saved to the USE model, to be moved to the "PROCESSED" queue, and the number
+     * of times it has failed.
+     */
+    private static class Acknowledgement {
+
+        private final List<Tuple> objects;
+        private final int time;
+        private int attempts;
+
+        private Acknowledgement(List<Tuple> objects, int time) {
+            this.objects = objects;
+            this.time = time;
+            this.attempts = 1;
+        }
+
+    }
+
 }
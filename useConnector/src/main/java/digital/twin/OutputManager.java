@@ -1,29 +1,57 @@
 package digital.twin;
 
+import com.google.common.eventbus.Subscribe;
 import org.tzi.use.api.UseApiException;
+import org.tzi.use.uml.mm.MClass;
+import org.tzi.use.uml.ocl.value.CollectionValue;
+import org.tzi.use.uml.ocl.value.Value;
+import org.tzi.use.uml.sys.MObject;
 import org.tzi.use.uml.sys.MObjectState;
+import org.tzi.use.uml.sys.events.ObjectCreatedEvent;
+import plugin.DriverConfig;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
 import utils.DTLogger;
+import utils.Metrics;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
  * Class that retrieves all instances of a USE model class and serializes them for storage in the data lake.
+ * New instances are detected through the USE system's object creation events, so they are queued
+ * for storage as soon as they are created instead of scanning the whole model periodically.
+ * New instances are then assigned to the queue of their twin, and the instances of each twin are saved
+ * separately, so that the instances of different twins can be saved in parallel.
+ * Instances whose partitioning or saving fails are queued again, and the twins they belong to are
+ * reported again by <i>partitionNewObjects</i> until they are saved.
  */
 public abstract class OutputManager {
 
     protected static final String IS_PROCESSED = "isProcessed";
     protected static final String WHEN_PROCESSED = "whenProcessed";
     protected static final String TIMESTAMP = "timestamp";
+    protected static final String TWIN_ID = "twinId";
 
     protected final AttributeSpecification attributeSpecification;
     protected final DTUseFacade useApi;
     private final String channel;
     private final String retrievedClass;
     private final String objectType;
+    private final Queue<MObject> createdObjects;
+    private final Map<String, Queue<MObject>> pendingObjects;
+    private final Set<String> twinsToSave;
+    private final Semaphore newObjectsSignal;
+    private MClass retrievedMClass;
+    private final Metrics.Histogram batchLatency;
+    private final Metrics.Histogram commandsPerBatch;
+    private final Metrics.Histogram sentBytesPerBatch;
+    private long sentBytes;
 
     /**
      * Default constructor. Constructors from subclasses must set the type of the attributes to serialize
@@ -41,6 +69,16 @@ public abstract class OutputManager {
         this.channel = channel;
         this.retrievedClass = retrievedClass;
         this.objectType = objectType;
+        createdObjects = new ConcurrentLinkedQueue<>();
+        pendingObjects = new ConcurrentHashMap<>();
+        twinsToSave = ConcurrentHashMap.newKeySet();
+        newObjectsSignal = new Semaphore(0);
+        retrievedMClass = null;
+        batchLatency = Metrics.histogram("output." + objectType + ".batchNanos");
+        commandsPerBatch = Metrics.histogram("output." + objectType + ".commandsPerBatch");
+        sentBytesPerBatch = Metrics.histogram("output." + objectType + ".sentBytesPerBatch");
+        Metrics.gauge("output." + objectType + ".queued", () -> createdObjects.size()
+                + pendingObjects.values().stream().mapToLong(Queue::size).sum());
     }
 
     /**
@@ -52,65 +90,275 @@ public abstract class OutputManager {
     }
 
     /**
-     * Retrieves the objects of class <i>retrievedClass</i> from the currently displayed object diagram.
-     * @return The list of objects available in the currently displayed object diagram.
+     * Returns the prefix of the identifiers of the serialized instances.
+     * @return The type of the serialized instances.
      */
-    public List<MObjectState> getUnprocessedModelObjects() {
-        List<MObjectState> result = useApi.getObjectsOfClass(retrievedClass);
-        result.removeIf(obj -> useApi.getBooleanAttribute(obj, IS_PROCESSED));
-        return result;
+    public String getObjectType() {
+        return objectType;
     }
 
     /**
-     * Saves all the objects in the currently displayed object diagram to the data lake.
+     * Starts listening to object creation events in the USE model. Instances of <i>retrievedClass</i>
+     * that already exist are queued right away.
+     */
+    public void startListening() {
+        retrievedMClass = Objects.requireNonNull(useApi.getModelClass(retrievedClass));
+        useApi.registerEventListener(this);
+        for (MObjectState objstate : useApi.getObjectsOfClass(retrievedClass)) {
+            enqueue(objstate.object());
+        }
+    }
+
+    /**
+     * Stops listening to object creation events in the USE model.
+     */
+    public void stopListening() {
+        useApi.unregisterEventListener(this);
+    }
+
+    /**
+     * Stores the aggregated registers that are still being accumulated (see <i>flushAggregateRegisters</i>),
+     * e.g., when the connection ends. Must be called once no more objects are being saved.
+     * @param jedis An instance of the Jedis client to access the data lake.
+     */
+    public void saveOpenAggregateRegisters(Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        useApi.execute(() -> {
+            flushAggregateRegisters(pipeline);
+            return null;
+        });
+        pipeline.sync();
+    }
+
+    /**
+     * Called by the USE system each time an object is created.
+     * @param event The object creation event.
+     */
+    @Subscribe
+    public void onObjectCreated(ObjectCreatedEvent event) {
+        MObject object = event.getCreatedObject();
+        if (retrievedMClass != null && object.cls().isSubClassOf(retrievedMClass)) {
+            enqueue(object);
+        }
+    }
+
+    /**
+     * Waits until new instances of <i>retrievedClass</i> are created or a timeout expires.
+     * @param timeoutMillis Maximum number of milliseconds to wait.
+     * @return True if new instances have been created since the last call, or if some instances are
+     *      still waiting to be saved when the timeout expires (e.g., after a failed save).
+     */
+    public boolean awaitNewObjects(long timeoutMillis) throws InterruptedException {
+        if (newObjectsSignal.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            newObjectsSignal.drainPermits();
+            return true;
+        }
+        return !createdObjects.isEmpty() || !twinsToSave.isEmpty();
+    }
+
+    /**
+     * Assigns the instances of class <i>retrievedClass</i> created since the last call to the queues
+     * of their twins. If the model cannot be read, the instances are queued again.
+     * @return The IDs of the twins with objects waiting to be saved, including those of earlier calls
+     *      that have not been saved yet.
+     */
+    public List<String> partitionNewObjects() {
+        List<MObject> created = new ArrayList<>();
+        MObject object;
+        while ((object = createdObjects.poll()) != null) {
+            created.add(object);
+        }
+        if (!created.isEmpty()) {
+            try {
+                useApi.execute(() -> {
+                    for (MObjectState objstate : useApi.getObjectStates(created)) {
+                        String twinId = getTwinId(objstate);
+                        if (twinId == null) {
+                            DTLogger.warn(getChannel(), "Ignoring output object with no twin ID: " + objstate.object().name());
+                            continue;
+                        }
+                        pendingObjects.computeIfAbsent(twinId, k -> new ConcurrentLinkedQueue<>()).add(objstate.object());
+                        twinsToSave.add(twinId);
+                    }
+                    return null;
+                });
+            } catch (RuntimeException ex) {
+                createdObjects.addAll(created);
+                throw ex;
+            }
+        }
+        return new ArrayList<>(twinsToSave);
+    }
+
+    /**
+     * Saves the objects of a twin in the currently displayed object diagram to the data lake. Objects are
+     * saved in ascending score order, in batches of DriverConfig.OUTPUT_BATCH_SIZE, each sent to the
+     * data lake in one pipeline. The objects of each twin are saved in order; objects of different twins
+     * may be saved concurrently.
      * @param jedis An instance of the Jedis client to access the data lake.
+     * @param twinId The ID of the twin whose objects to save.
      */
-    public void saveObjectsToDataLake(Jedis jedis) {
-        useApi.updateDerivedValues();
-        List<MObjectState> unprocessedObjects = getUnprocessedModelObjects();
-        for (MObjectState objstate : unprocessedObjects) {
-            saveOneObject(jedis, objstate);
+    public void saveObjectsToDataLake(Jedis jedis, String twinId) {
+        Queue<MObject> twinObjects = pendingObjects.get(twinId);
+        if (twinObjects == null) {
+            return;
+        }
+        synchronized (twinObjects) {
+            twinsToSave.remove(twinId);
+            // A set, since objects queued again after a failed partition may already be queued
+            Set<MObject> pending = new LinkedHashSet<>();
+            MObject object;
+            while ((object = twinObjects.poll()) != null) {
+                pending.add(object);
+            }
+            List<MObjectState> unprocessedObjects;
+            try {
+                unprocessedObjects = useApi.execute(() -> {
+                    List<MObjectState> result = useApi.getObjectStates(pending);
+                    result.removeIf(obj -> Boolean.TRUE.equals(useApi.getBooleanAttribute(obj, IS_PROCESSED)));
+                    result.sort(Comparator.comparingDouble(this::getObjectScore));
+                    return result;
+                });
+            } catch (RuntimeException ex) {
+                requeue(twinId, twinObjects, pending);
+                throw ex;
+            }
+            for (int from = 0; from < unprocessedObjects.size(); from += DriverConfig.OUTPUT_BATCH_SIZE) {
+                int to = Math.min(from + DriverConfig.OUTPUT_BATCH_SIZE, unprocessedObjects.size());
+                if (!saveBatch(jedis, twinId, unprocessedObjects.subList(from, to))) {
+                    // Queue the failed batch and the rest again, to be saved in order in a later call
+                    List<MObject> unsaved = new ArrayList<>();
+                    for (MObjectState objstate : unprocessedObjects.subList(from, unprocessedObjects.size())) {
+                        unsaved.add(objstate.object());
+                    }
+                    requeue(twinId, twinObjects, unsaved);
+                    break;
+                }
+            }
         }
     }
 
     /**
-     * Auxiliary method to store the object in the database, extracted from the diagram.
+     * Auxiliary method to store a batch of objects in the database. Objects are only marked as processed
+     * and cleaned up if all the writes of the batch succeed; otherwise, the caller queues them again.
+     * The objects are read and updated in two model tasks, so the model thread is not blocked while
+     * the writes are sent to the data lake. The batch is delimited by <i>beginBatch</i> and <i>endBatch</i>.
      * @param jedis An instance of the Jedis client to access the data lake.
+     * @param twinId The ID of the twin the objects belong to.
+     * @param batch The objects to store.
+     * @return false if the batch could not be stored (e.g., because of an error in the model, a failed
+     *      write or a lost connection).
+     */
+    private boolean saveBatch(Jedis jedis, String twinId, List<MObjectState> batch) {
+        long start = System.nanoTime();
+        List<String> objectIds = new ArrayList<>(batch.size());
+        int time;
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            long[] batchSentBytes = new long[1];
+            time = useApi.execute(() -> {
+                int now = useApi.getCurrentTime();
+                sentBytes = 0;
+                beginBatch(twinId);
+                for (MObjectState objstate : batch) {
+                    objectIds.add(saveOneObject(pipeline, objstate, now));
+                }
+                batchSentBytes[0] = sentBytes;
+                return now;
+            });
+
+            // Verify the results of the batch
+            List<Object> replies = pipeline.syncAndReturnAll();
+            for (Object reply : replies) {
+                if (reply instanceof JedisDataException) {
+                    throw (JedisDataException) reply;
+                }
+            }
+            commandsPerBatch.record(replies.size());
+            sentBytesPerBatch.record(batchSentBytes[0]);
+        } catch (Exception ex) {
+            DTLogger.error(getChannel(), "Could not save a batch of " + batch.size()
+                    + " output object(s), they will be saved again later:", ex);
+            try {
+                useApi.execute(() -> {
+                    endBatch(twinId, false);
+                    return null;
+                });
+            } catch (RuntimeException endEx) {
+                // The next batch of the twin discards the changes anyway
+                DTLogger.error(getChannel(), "Could not discard the changes of the failed batch:", endEx);
+            }
+            batchLatency.recordSince(start);
+            return false;
+        }
+
+        useApi.execute(() -> {
+            endBatch(twinId, true);
+            for (int i = 0; i < batch.size(); i++) {
+                MObjectState objstate = batch.get(i);
+                DTLogger.info(getChannel(), "Saved output object: ", objectIds.get(i));
+
+                // Mark object as processed
+                useApi.setAttribute(objstate, IS_PROCESSED, true);
+                useApi.setAttribute(objstate, WHEN_PROCESSED, time);
+
+                // Clean up
+                try {
+                    cleanUpModel(objstate);
+                } catch (Exception ex) {
+                    DTLogger.error(getChannel(), "Could not clean up model:");
+                    ex.printStackTrace();
+                }
+            }
+            return null;
+        });
+        batchLatency.recordSince(start);
+        return true;
+    }
+
+    /**
+     * Auxiliary method to queue the writes that store the object in the database, extracted from the diagram.
+     * @param pipeline The pipeline to queue the writes in.
      * @param objstate The object to store.
+     * @param time The current time, to be set as the object's processing time.
+     * @return The identifier of the object in the data lake.
      */
-    private synchronized void saveOneObject(Jedis jedis, MObjectState objstate) {
+    String saveOneObject(Pipeline pipeline, MObjectState objstate, int time) {
         Map<String, String> armValues = new HashMap<>();
 
         // Generate the object identifier
         String objectId = getObjectId(objstate);
         String objectTypeAndId = objectType + ":" + objectId;
 
-        for (String attr : attributeSpecification.attributeNames()) {
-            AttributeType attrType = attributeSpecification.typeOf(attr);
-            int multiplicity = attributeSpecification.multiplicityOf(attr);
-            String attrValue = useApi.getAttributeAsString(objstate, attr);
-            if (attrValue != null) {
+        AttributeAccessPlan plan = attributeSpecification.bind(objstate.object().cls());
+        for (int a = 0; a < plan.size(); a++) {
+            String attr = plan.nameOf(a);
+            AttributeType attrType = plan.typeOf(a);
+            int multiplicity = plan.multiplicityOf(a);
+            if (plan.attributeOf(a) != null) {
+                Value attrValue = useApi.getAttributeValue(objstate, plan.attributeOf(a));
                 if (multiplicity > 1) {
                     // A sequence of values
-                    String[] values = extractValuesFromCollection(attrValue, attrType);
-                    if (values.length == multiplicity) {
-                        for (int i = 1; i <= multiplicity; i++) {
-                            String attrI = attr + "_" + i;
-                            String attrvalueI = attrType.fromUseToRedisString(values[i - 1]);
+                    int size = attrValue instanceof CollectionValue ? ((CollectionValue) attrValue).size() : 0;
+                    if (size == multiplicity) {
+                        int i = 0;
+                        for (Value element : (CollectionValue) attrValue) {
+                            String attrI = plan.fieldNameOf(a, i++);
+                            String attrvalueI = attrType.fromUseToRedisString(element);
                             armValues.put(attrI,attrvalueI);
-                            addAttributeQueryRegisters(jedis, objectTypeAndId, attrI, attrType, attrvalueI);
+                            addAttributeQueryRegisters(pipeline, objectTypeAndId, attrI, attrType, attrvalueI);
                         }
                     } else {
                         DTLogger.warn(getChannel(),
                                 "Error saving output object " + objectTypeAndId + ": "
-                                + "attribute " + attr + " has " + values.length
+                                + "attribute " + attr + " has " + size
                                 + " value(s), but we need " + multiplicity);
                     }
                 } else {
                     // A single value
-                    attrValue = attrType.fromUseToRedisString(attrValue);
-                    armValues.put(attr, attrValue);
-                    addAttributeQueryRegisters(jedis, objectTypeAndId, attr, attrType, attrValue);
+                    String redisValue = attrType.fromUseToRedisString(attrValue);
+                    armValues.put(attr, redisValue);
+                    addAttributeQueryRegisters(pipeline, objectTypeAndId, attr, attrType, redisValue);
                 }
             } else {
                 DTLogger.warn(getChannel(),
@@ -119,27 +367,69 @@ public abstract class OutputManager {
             }
         }
 
-        // Save the object
-        jedis.hset(objectTypeAndId, armValues);
-        DTLogger.info(getChannel(), "Saved output object: " + objectTypeAndId);
-
-        // Mark object as processed
-        int time = useApi.getCurrentTime();
-        jedis.zadd(objectType + "_PROCESSED", getObjectScore(objstate), objectTypeAndId);
-        jedis.hset(objectTypeAndId, WHEN_PROCESSED, time + "");
-        useApi.setAttribute(objstate, IS_PROCESSED, true);
-        useApi.setAttribute(objstate, WHEN_PROCESSED, time);
+        // Save the object and mark it as processed, unless it only repeats a previous object
+        armValues.put(WHEN_PROCESSED, time + "");
+        sentBytes += estimateSize(objectTypeAndId, armValues);
+        addAggregateRegisters(pipeline, objectTypeAndId, armValues);
+        if (saveAsRepetition(pipeline, objectTypeAndId, armValues)) {
+            return objectTypeAndId;
+        }
+        writeObject(pipeline, objectTypeAndId, armValues);
+        pipeline.zadd(getProcessedSetId(getTwinId(objstate)), getObjectScore(objstate), objectTypeAndId);
 
         // Add registers for other queries
-        addObjectQueryRegisters(jedis, objectTypeAndId, armValues);
+        addObjectQueryRegisters(pipeline, objectTypeAndId, armValues);
+        return objectTypeAndId;
+    }
 
-        // Clean up
-        try {
-            cleanUpModel(objstate);
-        } catch (Exception ex) {
-            DTLogger.error(getChannel(), "Could not clean up model:");
-            ex.printStackTrace();
+    /**
+     * Estimates the number of bytes sent to the data lake to store an object, i.e., the length of its
+     * key, fields and values. Protocol overhead and registers for queries are not included.
+     * @param key The key of the object.
+     * @param values The values of the object.
+     * @return The approximate size of the object.
+     */
+    private static long estimateSize(String key, Map<String, String> values) {
+        long size = key.length();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            size += entry.getKey().length() + entry.getValue().length();
         }
+        return size;
+    }
+
+    /**
+     * Returns the key of the sorted set of the processed objects of a twin.
+     * @param twinId The ID of the twin.
+     * @return The key of the sorted set.
+     */
+    protected String getProcessedSetId(String twinId) {
+        return objectType + ":" + twinId + "_PROCESSED";
+    }
+
+    /**
+     * Returns the ID of the twin an object belongs to. Must be called from the model thread.
+     * @param objstate The object state to return the twin ID from.
+     * @return The ID of the twin, or null if the object has no twin ID.
+     */
+    protected String getTwinId(MObjectState objstate) {
+        return useApi.getStringAttribute(objstate, TWIN_ID);
+    }
+
+    /**
+     * Queues objects of a twin again after a failed save, so that they are saved in a later call.
+     * The objects are sorted by score when they are saved, so their position in the queue is irrelevant.
+     * @param twinId The ID of the twin the objects belong to.
+     * @param twinObjects The queue of the twin.
+     * @param objects The objects to queue.
+     */
+    private void requeue(String twinId, Queue<MObject> twinObjects, Collection<MObject> objects) {
+        twinObjects.addAll(objects);
+        twinsToSave.add(twinId);
+    }
+
+    private void enqueue(MObject object) {
+        createdObjects.add(object);
+        newObjectsSignal.release();
     }
 
     /**
@@ -148,25 +438,84 @@ public abstract class OutputManager {
      */
     protected abstract void cleanUpModel(MObjectState objstate) throws UseApiException;
 
+    /**
+     * Called from the model thread before the writes of a batch of objects of a twin are queued.
+     * Subclasses that keep state about the objects already stored must stage the changes of the batch
+     * until <i>endBatch</i> is called, since the writes of a failed batch are queued again later.
+     * Changes staged by an earlier batch of the twin that did not end must be discarded.
+     * @param twinId The ID of the twin the objects of the batch belong to.
+     */
+    protected void beginBatch(String twinId) { }
+
+    /**
+     * Called from the model thread once the writes of a batch of objects of a twin have been sent.
+     * @param twinId The ID of the twin the objects of the batch belong to.
+     * @param saved true if all the writes of the batch succeeded, so the staged changes can be kept;
+     *      false if the batch will be saved again later, so they must be discarded.
+     */
+    protected void endBatch(String twinId, boolean saved) { }
+
+    /**
+     * Gives subclasses the chance to maintain aggregated registers (e.g., summaries over time) of
+     * every processed object, including those that are stored as repetitions of a previous object.
+     * @param pipeline The pipeline where the writes of the object are being queued.
+     * @param objectTypeAndId The ID of the object to store.
+     * @param values The values of the object to store.
+     */
+    protected void addAggregateRegisters(
+            Pipeline pipeline, String objectTypeAndId, Map<String, String> values) { }
+
+    /**
+     * Gives subclasses the chance to store the aggregated registers they are still accumulating,
+     * which would be lost otherwise. Called from the model thread.
+     * @param pipeline The pipeline where the writes are being queued.
+     */
+    protected void flushAggregateRegisters(Pipeline pipeline) { }
+
+    /**
+     * Gives subclasses the chance to store an object as a repetition of an object already stored,
+     * instead of storing it in full. If this method returns true, the object's hash, its entry in the
+     * "PROCESSED" sorted set and its object query registers are not written.
+     * @param pipeline The pipeline where the writes of the object are being queued.
+     * @param objectTypeAndId The ID of the object to store.
+     * @param values The values of the object to store.
+     * @return true if the subclass has recorded the object as a repetition.
+     */
+    protected boolean saveAsRepetition(
+            Pipeline pipeline, String objectTypeAndId, Map<String, String> values) {
+        return false;
+    }
+
+    /**
+     * Queues the write of the hash that stores an object in the data lake. Subclasses may override
+     * this method to store the values of the object in a different encoding.
+     * @param pipeline The pipeline where the writes of the object are being queued.
+     * @param objectTypeAndId The ID of the object to store.
+     * @param values The values of the object to store.
+     */
+    protected void writeObject(Pipeline pipeline, String objectTypeAndId, Map<String, String> values) {
+        pipeline.hset(objectTypeAndId, values);
+    }
+
     /**
      * Adds registers to the data lake each time an object is processed to make queries possible.
-     * @param jedis An instance of the Jedis client to access the data lake.
+     * @param pipeline The pipeline where the writes of the object are being queued.
      * @param objectTypeAndId The ID of the object to generate the registers for.
      * @param values The values of the object to generate the registers for.
      */
     protected abstract void addObjectQueryRegisters(
-            Jedis jedis, String objectTypeAndId, Map<String, String> values);
+            Pipeline pipeline, String objectTypeAndId, Map<String, String> values);
 
     /**
      * Adds registers to the data lake each time an attribute is processed to make queries possible.
-     * @param jedis An instance of the Jedis client to access the data lake.
+     * @param pipeline The pipeline where the writes of the object are being queued.
      * @param objectTypeAndId The ID of the object to generate the registers for.
      * @param attributeName The name of the attribute to generate the registers for.
      * @param type The type of the attribute to generate the registers for.
      * @param attributeValue The value of the attribute to generate the registers for.
      */
     protected abstract void addAttributeQueryRegisters(
-            Jedis jedis, String objectTypeAndId, String attributeName,
+            Pipeline pipeline, String objectTypeAndId, String attributeName,
             AttributeType type, String attributeValue);
 
     /**
@@ -184,19 +533,4 @@ public abstract class OutputManager {
      */
     protected abstract double getObjectScore(MObjectState objstate);
 
-    /**
-     * Converts an USE collection value to an array of values.
-     * @param collection The collection value to convert.
-     * @param baseType Type of each element in the collection.
-     * @return An array of strings containing each value in the collection.
-     */
-    private String[] extractValuesFromCollection(String collection, AttributeType baseType) {
-        collection = collection.replaceAll("(?:Set|Bag|OrderedSet|Sequence)\\{(.*)}", "$1");
-        String[] result = collection.split(",");
-        for (int i = 0; i < result.length; i++) {
-            result[i] = baseType.fromUseToRedisString(result[i]);
-        }
-        return result;
-    }
-
 }
@@ -2,18 +2,59 @@ package digital.twin;
 
 import org.tzi.use.api.UseApiException;
 import org.tzi.use.uml.sys.MObjectState;
+import plugin.DriverConfig;
 import pubsub.DTPubSub;
-import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.util.SafeEncoder;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
  * OutputManager that retrieves all OutputSnapshot instances and serializes them for storage in the data lake.
+ * If DriverConfig.SNAPSHOT_IDLE_COMPRESSION is enabled, snapshots taken while the robot is stationary
+ * that are identical to the previous one are not stored. Instead, the previous snapshot (the "base")
+ * records the run of repetitions in its "repeatUntil" and "repeatEvery" fields: the base represents
+ * a snapshot every "repeatEvery" milliseconds from its timestamp until "repeatUntil".
+ * If DriverConfig.SNAPSHOT_PACKED_ENCODING is enabled, the servo values and flags of each snapshot are
+ * stored in a single binary "packed" field, with the following little-endian layout:
+ * version (1 byte), timestamp (int32), flags (1 byte, bit 0 = moving), and the six current angles,
+ * six target angles and six current speeds (int16 each, in hundredths of a degree). The field is kept
+ * small enough for Redis to store the hash in its compact encoding. Snapshots with values that do not
+ * fit in this layout are stored with one string field per value.
+ * If DriverConfig.SNAPSHOT_ROLLUPS_ENABLED is enabled, per-second and per-minute rollups of the snapshots
+ * of each twin are accumulated in memory and stored once their interval ends, in the
+ * "OutputSnapshotRollup:[resolution]" keys and their "_HISTORY" sorted sets. Raw snapshots and per-second
+ * rollups older than DriverConfig.SNAPSHOT_RETENTION_MS and SNAPSHOT_SECOND_ROLLUP_RETENTION_MS are
+ * removed as new snapshots arrive. The rollups whose interval has not ended are stored when the connection
+ * ends (see <i>flushAggregateRegisters</i>).
+ * The last snapshots and rollups are updated on a copy while the writes of a batch are queued, and the
+ * copy only replaces them once all the writes of the batch succeed, so a batch saved again after a failure
+ * produces the same writes. The retained keys are not copied: only the keys added and expired by the batch
+ * are recorded, and applied to them once the batch succeeds.
  */
 public class OutputSnapshotsManager extends OutputManager {
 
     private static final int NUMBER_OF_SERVOS = 6;
+    private static final String REPEAT_UNTIL = "repeatUntil";
+    private static final String REPEAT_EVERY = "repeatEvery";
+    private static final String PACKED = "packed";
+    private static final byte PACKED_VERSION = 1;
+    private static final int PACKED_SIZE = 1 + 4 + 1 + 3 * NUMBER_OF_SERVOS * 2;
+    private static final int PACKED_SCALE = 100;
+    private static final String[] PACKED_SEQUENCES = { "currentAngles", "targetAngles", "currentSpeeds" };
+    private static final int[] ROLLUP_RESOLUTIONS = { 1000, 60000 };
+
+    private final Map<String, LastSnapshot> lastSnapshots;
+    private final Map<String, TwinHistory> histories;
+    private final Map<String, StagedChanges> stagedChanges;
 
     /**
      * Default constructor.
@@ -27,6 +68,9 @@ public class OutputSnapshotsManager extends OutputManager {
         attributeSpecification.set("targetAngles", AttributeType.REAL, NUMBER_OF_SERVOS);
         attributeSpecification.set("currentSpeeds", AttributeType.REAL, NUMBER_OF_SERVOS);
         attributeSpecification.set("moving", AttributeType.BOOLEAN);
+        lastSnapshots = new HashMap<>();
+        histories = new HashMap<>();
+        stagedChanges = new HashMap<>();
     }
 
     protected String getObjectId(MObjectState objstate) {
@@ -43,20 +87,432 @@ public class OutputSnapshotsManager extends OutputManager {
         return useApi.getIntegerAttribute(objstate, "timestamp");
     }
 
+    protected void beginBatch(String twinId) {
+        stagedChanges.put(twinId, new StagedChanges());
+    }
+
+    protected void endBatch(String twinId, boolean saved) {
+        StagedChanges staged = stagedChanges.remove(twinId);
+        if (saved && staged != null) {
+            lastSnapshots.putAll(staged.lastSnapshots);
+            for (Map.Entry<String, TwinHistory> history : staged.histories.entrySet()) {
+                histories.put(history.getKey(), history.getValue().commit());
+            }
+        }
+    }
+
+    /**
+     * Returns the changes of the batch being saved for a twin.
+     * @param twinId The ID of the twin.
+     * @return The changes staged since the batch began.
+     */
+    private StagedChanges getStagedChanges(String twinId) {
+        return stagedChanges.computeIfAbsent(twinId, k -> new StagedChanges());
+    }
+
+    /**
+     * Returns the history of a twin and execution as updated by the batch being saved.
+     * @param idWithNoTimestamp The ID of the objects of the twin and execution, without the timestamp.
+     * @param values The values of an object of the twin and execution.
+     * @return A staged copy of the history, which replaces it if the batch is saved (see TwinHistory.commit).
+     */
+    private TwinHistory getStagedHistory(String idWithNoTimestamp, Map<String, String> values) {
+        StagedChanges staged = getStagedChanges(values.get(TWIN_ID));
+        TwinHistory history = staged.histories.get(idWithNoTimestamp);
+        if (history == null) {
+            TwinHistory committed = histories.get(idWithNoTimestamp);
+            history = committed != null
+                    ? new TwinHistory(committed)
+                    : new TwinHistory(values.get(TWIN_ID), values.get("executionId"));
+            staged.histories.put(idWithNoTimestamp, history);
+        }
+        return history;
+    }
+
+    protected void addAggregateRegisters(
+            Pipeline pipeline, String objectTypeAndId, Map<String, String> values) {
+        if (!DriverConfig.SNAPSHOT_ROLLUPS_ENABLED && DriverConfig.SNAPSHOT_RETENTION_MS <= 0) {
+            return;
+        }
+        String idWithNoTimestamp = objectTypeAndId.substring(0, objectTypeAndId.lastIndexOf(':'));
+        int timestamp = Integer.parseInt(values.get(TIMESTAMP));
+        TwinHistory history = getStagedHistory(idWithNoTimestamp, values);
+
+        if (DriverConfig.SNAPSHOT_ROLLUPS_ENABLED) {
+            for (int r = 0; r < ROLLUP_RESOLUTIONS.length; r++) {
+                SnapshotRollupBucket bucket = history.buckets[r];
+                if (bucket != null && timestamp < bucket.getStart()) {
+                    // The interval of this snapshot has already been stored
+                    continue;
+                }
+                if (bucket != null && bucket.endsBefore(timestamp)) {
+                    saveRollup(pipeline, history, r, bucket);
+                    bucket = null;
+                }
+                if (bucket == null) {
+                    bucket = new SnapshotRollupBucket(ROLLUP_RESOLUTIONS[r], timestamp, NUMBER_OF_SERVOS);
+                    history.buckets[r] = bucket;
+                }
+                bucket.add(values);
+            }
+        }
+
+        if (DriverConfig.SNAPSHOT_RETENTION_MS > 0) {
+            for (String expiredKey : history.rawKeys.expire(timestamp - DriverConfig.SNAPSHOT_RETENTION_MS)) {
+                pipeline.del(expiredKey);
+                pipeline.zrem(getProcessedSetId(history.twinId), expiredKey);
+                pipeline.zrem(idWithNoTimestamp + "_HISTORY", expiredKey);
+            }
+        }
+    }
+
+    /**
+     * Queues the writes that store a rollup whose interval has ended, and removes the expired per-second rollups.
+     * @param pipeline The pipeline where the writes are being queued.
+     * @param history The history of the twin the rollup belongs to.
+     * @param resolutionIndex The index of the resolution of the rollup in ROLLUP_RESOLUTIONS.
+     * @param bucket The rollup to store.
+     */
+    private void saveRollup(Pipeline pipeline, TwinHistory history, int resolutionIndex, SnapshotRollupBucket bucket) {
+        if (bucket.isEmpty()) {
+            return;
+        }
+        String rollupIdWithNoTimestamp = getRollupIdWithNoTimestamp(history, resolutionIndex);
+        String rollupId = writeRollup(pipeline, history, resolutionIndex, bucket);
+        if (resolutionIndex == 0 && DriverConfig.SNAPSHOT_SECOND_ROLLUP_RETENTION_MS > 0) {
+            history.secondRollupKeys.add(rollupId, bucket.getStart());
+            int cutoff = bucket.getStart() - DriverConfig.SNAPSHOT_SECOND_ROLLUP_RETENTION_MS;
+            for (String expiredKey : history.secondRollupKeys.expire(cutoff)) {
+                pipeline.del(expiredKey);
+                pipeline.zrem(rollupIdWithNoTimestamp + "_HISTORY", expiredKey);
+            }
+        }
+    }
+
+    /**
+     * Queues the writes that store a rollup, whose interval may not have ended yet.
+     * @param pipeline The pipeline where the writes are being queued.
+     * @param history The history of the twin the rollup belongs to.
+     * @param resolutionIndex The index of the resolution of the rollup in ROLLUP_RESOLUTIONS.
+     * @param bucket The rollup to store.
+     * @return The key of the rollup.
+     */
+    private String writeRollup(Pipeline pipeline, TwinHistory history, int resolutionIndex, SnapshotRollupBucket bucket) {
+        String rollupIdWithNoTimestamp = getRollupIdWithNoTimestamp(history, resolutionIndex);
+        String rollupId = rollupIdWithNoTimestamp + ":" + bucket.getStart();
+        pipeline.hset(rollupId, bucket.toHash(history.twinId, history.executionId));
+        pipeline.zadd(rollupIdWithNoTimestamp + "_HISTORY", bucket.getStart(), rollupId);
+        return rollupId;
+    }
+
+    private String getRollupIdWithNoTimestamp(TwinHistory history, int resolutionIndex) {
+        return getObjectType() + "Rollup:" + ROLLUP_RESOLUTIONS[resolutionIndex] + ":"
+                + history.twinId + ":" + history.executionId;
+    }
+
+    /**
+     * Queues the writes that store the rollups whose interval has not ended yet, which would otherwise be
+     * lost when the connection ends. They stay open, so storing them again later overwrites them.
+     * @param pipeline The pipeline where the writes are being queued.
+     */
+    protected void flushAggregateRegisters(Pipeline pipeline) {
+        for (TwinHistory history : histories.values()) {
+            for (int r = 0; r < ROLLUP_RESOLUTIONS.length; r++) {
+                SnapshotRollupBucket bucket = history.buckets[r];
+                if (bucket != null && !bucket.isEmpty()) {
+                    writeRollup(pipeline, history, r, bucket);
+                }
+            }
+        }
+    }
+
+    protected boolean saveAsRepetition(
+            Pipeline pipeline, String objectTypeAndId, Map<String, String> values) {
+        if (!DriverConfig.SNAPSHOT_IDLE_COMPRESSION) {
+            return false;
+        }
+        String idWithNoTimestamp = objectTypeAndId.substring(0, objectTypeAndId.lastIndexOf(':'));
+        int timestamp = Integer.parseInt(values.get(TIMESTAMP));
+        Map<String, String> content = new HashMap<>(values);
+        content.remove(TIMESTAMP);
+        content.remove(WHEN_PROCESSED);
+
+        StagedChanges staged = getStagedChanges(values.get(TWIN_ID));
+        LastSnapshot last = staged.lastSnapshots.get(idWithNoTimestamp);
+        if (last == null && lastSnapshots.containsKey(idWithNoTimestamp)) {
+            last = new LastSnapshot(lastSnapshots.get(idWithNoTimestamp));
+            staged.lastSnapshots.put(idWithNoTimestamp, last);
+        }
+        if (last != null && timestamp <= last.timestamp) {
+            // Older than the current run of repetitions, store it in full
+            return false;
+        }
+        if (last != null && "0".equals(content.get("moving")) && last.content.equals(content)) {
+            int interval = timestamp - last.timestamp;
+            if (last.repeatEvery == 0 || interval == last.repeatEvery) {
+                // Extend the run of repetitions of the base snapshot
+                Map<String, String> range = new HashMap<>();
+                range.put(REPEAT_UNTIL, timestamp + "");
+                range.put(REPEAT_EVERY, interval + "");
+                pipeline.hset(last.baseKey, range);
+                last.timestamp = timestamp;
+                last.repeatEvery = interval;
+                return true;
+            }
+        }
+        staged.lastSnapshots.put(idWithNoTimestamp, new LastSnapshot(objectTypeAndId, content, timestamp));
+        return false;
+    }
+
+    protected void writeObject(Pipeline pipeline, String objectTypeAndId, Map<String, String> values) {
+        if (!DriverConfig.SNAPSHOT_PACKED_ENCODING) {
+            super.writeObject(pipeline, objectTypeAndId, values);
+            return;
+        }
+        Map<String, String> remaining = new HashMap<>(values);
+        ByteBuffer packed = ByteBuffer.allocate(PACKED_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        packed.put(PACKED_VERSION);
+        packed.putInt(Integer.parseInt(values.get(TIMESTAMP)));
+        packed.put((byte) ("0".equals(remaining.remove("moving")) ? 0 : 1));
+        for (String sequence : PACKED_SEQUENCES) {
+            for (int i = 1; i <= NUMBER_OF_SERVOS; i++) {
+                String value = remaining.remove(sequence + "_" + i);
+                long scaled = value != null ? Math.round(Double.parseDouble(value) * PACKED_SCALE) : Long.MAX_VALUE;
+                if (scaled < Short.MIN_VALUE || scaled > Short.MAX_VALUE) {
+                    // Missing or out of range, use the string format
+                    super.writeObject(pipeline, objectTypeAndId, values);
+                    return;
+                }
+                packed.putShort((short) scaled);
+            }
+        }
+
+        Map<byte[], byte[]> hash = new HashMap<>();
+        for (Map.Entry<String, String> entry : remaining.entrySet()) {
+            hash.put(SafeEncoder.encode(entry.getKey()), SafeEncoder.encode(entry.getValue()));
+        }
+        hash.put(SafeEncoder.encode(PACKED), packed.array());
+        pipeline.hset(SafeEncoder.encode(objectTypeAndId), hash);
+    }
+
     protected void addObjectQueryRegisters(
-            Jedis jedis, String objectTypeAndId, Map<String, String> values) {
+            Pipeline pipeline, String objectTypeAndId, Map<String, String> values) {
         // Make a snapshot history for each twin and execution ID
         String idWithNoTimestamp = objectTypeAndId.substring(0, objectTypeAndId.lastIndexOf(':'));
         int timestamp = Integer.parseInt(values.get("timestamp"));
-        jedis.zadd(idWithNoTimestamp + "_HISTORY", timestamp, objectTypeAndId);
+        pipeline.zadd(idWithNoTimestamp + "_HISTORY", timestamp, objectTypeAndId);
+        if (DriverConfig.SNAPSHOT_RETENTION_MS > 0) {
+            getStagedHistory(idWithNoTimestamp, values).rawKeys.add(objectTypeAndId, timestamp);
+        }
     }
 
     protected void addAttributeQueryRegisters(
-            Jedis jedis, String objectTypeAndId, String attributeName,
+            Pipeline pipeline, String objectTypeAndId, String attributeName,
             AttributeType type, String attributeValue) { }
 
     protected void cleanUpModel(MObjectState objstate) throws UseApiException {
         useApi.destroyObject(objstate);
     }
 
+    /**
+     * The last snapshot stored in full for a twin and execution, and the run of repetitions it represents.
+     */
+    private static class LastSnapshot {
+
+        private final String baseKey;
+        private final Map<String, String> content;
+        private int timestamp;
+        private int repeatEvery;
+
+        private LastSnapshot(String baseKey, Map<String, String> content, int timestamp) {
+            this.baseKey = baseKey;
+            this.content = content;
+            this.timestamp = timestamp;
+            this.repeatEvery = 0;
+        }
+
+        private LastSnapshot(LastSnapshot other) {
+            this.baseKey = other.baseKey;
+            this.content = other.content;
+            this.timestamp = other.timestamp;
+            this.repeatEvery = other.repeatEvery;
+        }
+
+    }
+
+    /**
+     * The changes to the state of the twins made by the batch being saved for a twin.
+     */
+    private static class StagedChanges {
+
+        private final Map<String, LastSnapshot> lastSnapshots;
+        private final Map<String, TwinHistory> histories;
+
+        private StagedChanges() {
+            this.lastSnapshots = new HashMap<>();
+            this.histories = new HashMap<>();
+        }
+
+    }
+
+    /**
+     * The rollups being accumulated for a twin and execution, and the keys subject to retention.
+     */
+    private static class TwinHistory {
+
+        private final String twinId;
+        private final String executionId;
+        private final SnapshotRollupBucket[] buckets;
+        private final RetainedKeys rawKeys;
+        private final RetainedKeys secondRollupKeys;
+
+        private TwinHistory(String twinId, String executionId) {
+            this.twinId = twinId;
+            this.executionId = executionId;
+            this.buckets = new SnapshotRollupBucket[ROLLUP_RESOLUTIONS.length];
+            this.rawKeys = new RetainedKeys();
+            this.secondRollupKeys = new RetainedKeys();
+        }
+
+        private TwinHistory(String twinId, String executionId, SnapshotRollupBucket[] buckets,
+                            RetainedKeys rawKeys, RetainedKeys secondRollupKeys) {
+            this.twinId = twinId;
+            this.executionId = executionId;
+            this.buckets = buckets;
+            this.rawKeys = rawKeys;
+            this.secondRollupKeys = secondRollupKeys;
+        }
+
+        /**
+         * Creates a staged copy of a history: the rollups being accumulated are copied, and the keys
+         * subject to retention are staged on top of those of the history (see RetainedKeys).
+         * @param other The history to copy.
+         */
+        private TwinHistory(TwinHistory other) {
+            this.twinId = other.twinId;
+            this.executionId = other.executionId;
+            this.buckets = new SnapshotRollupBucket[other.buckets.length];
+            for (int r = 0; r < buckets.length; r++) {
+                buckets[r] = other.buckets[r] != null ? new SnapshotRollupBucket(other.buckets[r]) : null;
+            }
+            this.rawKeys = new RetainedKeys(other.rawKeys);
+            this.secondRollupKeys = new RetainedKeys(other.secondRollupKeys);
+        }
+
+        /**
+         * Applies the changes of a staged copy to the history it was copied from.
+         * @return The updated history, to replace the one it was copied from.
+         */
+        private TwinHistory commit() {
+            return new TwinHistory(twinId, executionId, buckets, rawKeys.commit(), secondRollupKeys.commit());
+        }
+
+    }
+
+    /**
+     * The keys stored in the data lake during the retention window, in ascending timestamp order.
+     * Staged keys (see the copy constructor) only record the changes made to the keys they are staged on:
+     * the keys added, and the number of keys expired, which are read through an iterator without removing
+     * them. The changes are applied by <i>commit</i>, so staging a batch does not depend on the size of
+     * the retention window.
+     */
+    private static class RetainedKeys {
+
+        private final Deque<String> keys;
+        private final Deque<Integer> timestamps;
+        private String lastBeforeWindow;
+        private final RetainedKeys base;
+        private final Iterator<String> baseKeys;
+        private final Iterator<Integer> baseTimestamps;
+        private String nextBaseKey;
+        private Integer nextBaseTimestamp;
+        private int expiredFromBase;
+
+        private RetainedKeys() {
+            this.keys = new ArrayDeque<>();
+            this.timestamps = new ArrayDeque<>();
+            this.lastBeforeWindow = null;
+            this.base = null;
+            this.baseKeys = Collections.emptyIterator();
+            this.baseTimestamps = Collections.emptyIterator();
+            this.expiredFromBase = 0;
+        }
+
+        /**
+         * Stages changes on top of some keys, which must not change until the staged keys are committed
+         * or discarded.
+         * @param base The keys to stage the changes on.
+         */
+        private RetainedKeys(RetainedKeys base) {
+            this.keys = new ArrayDeque<>();
+            this.timestamps = new ArrayDeque<>();
+            this.lastBeforeWindow = base.lastBeforeWindow;
+            this.base = base;
+            this.baseKeys = base.keys.iterator();
+            this.baseTimestamps = base.timestamps.iterator();
+            this.expiredFromBase = 0;
+            nextBaseKey();
+        }
+
+        private void nextBaseKey() {
+            nextBaseKey = baseKeys.hasNext() ? baseKeys.next() : null;
+            nextBaseTimestamp = baseTimestamps.hasNext() ? baseTimestamps.next() : null;
+        }
+
+        private void add(String key, int timestamp) {
+            keys.addLast(key);
+            timestamps.addLast(timestamp);
+        }
+
+        /**
+         * Removes the keys older than a timestamp, except for the last one, which may still represent
+         * repetitions of itself after that timestamp.
+         * @param cutoff The first timestamp of the retention window.
+         * @return The keys that have expired.
+         */
+        private Deque<String> expire(int cutoff) {
+            Deque<String> expired = new ArrayDeque<>();
+            while (true) {
+                String key;
+                if (nextBaseTimestamp != null) {
+                    if (nextBaseTimestamp >= cutoff) {
+                        break;
+                    }
+                    key = nextBaseKey;
+                    expiredFromBase++;
+                    nextBaseKey();
+                } else if (!timestamps.isEmpty() && timestamps.peekFirst() < cutoff) {
+                    key = keys.removeFirst();
+                    timestamps.removeFirst();
+                } else {
+                    break;
+                }
+                if (lastBeforeWindow != null) {
+                    expired.add(lastBeforeWindow);
+                }
+                lastBeforeWindow = key;
+            }
+            return expired;
+        }
+
+        /**
+         * Applies the staged changes to the keys they are staged on.
+         * @return The updated keys.
+         */
+        private RetainedKeys commit() {
+            if (base == null) {
+                return this;
+            }
+            for (int i = 0; i < expiredFromBase; i++) {
+                base.keys.removeFirst();
+                base.timestamps.removeFirst();
+            }
+            base.keys.addAll(keys);
+            base.timestamps.addAll(timestamps);
+            base.lastBeforeWindow = lastBeforeWindow;
+            return base;
+        }
+
+    }
+
 }
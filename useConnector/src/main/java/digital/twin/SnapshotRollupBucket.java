@@ -0,0 +1,140 @@
+package digital.twin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the snapshots of a twin taken during a fixed time interval (e.g., one second or one minute)
+ * to store a summary of them: the minimum, maximum and mean of each servo's current angle and speed, and
+ * the ratio of snapshots where the robot was moving.
+ */
+class SnapshotRollupBucket {
+
+    private static final String[] SEQUENCES = { "currentAngles", "currentSpeeds" };
+
+    private final int resolution;
+    private final int start;
+    private final int numberOfServos;
+    private final double[] min;
+    private final double[] max;
+    private final double[] sum;
+    private int count;
+    private int movingCount;
+
+    /**
+     * Default constructor.
+     * @param resolution The duration of the interval, in milliseconds.
+     * @param timestamp A timestamp of the interval, which is aligned to the resolution.
+     * @param numberOfServos The number of servos of the robot.
+     */
+    SnapshotRollupBucket(int resolution, int timestamp, int numberOfServos) {
+        this.resolution = resolution;
+        this.start = Math.floorDiv(timestamp, resolution) * resolution;
+        this.numberOfServos = numberOfServos;
+        int size = SEQUENCES.length * numberOfServos;
+        min = new double[size];
+        max = new double[size];
+        sum = new double[size];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        count = 0;
+        movingCount = 0;
+    }
+
+    /**
+     * Copy constructor.
+     * @param other The bucket to copy.
+     */
+    SnapshotRollupBucket(SnapshotRollupBucket other) {
+        this.resolution = other.resolution;
+        this.start = other.start;
+        this.numberOfServos = other.numberOfServos;
+        min = other.min.clone();
+        max = other.max.clone();
+        sum = other.sum.clone();
+        count = other.count;
+        movingCount = other.movingCount;
+    }
+
+    /**
+     * Returns the first timestamp of the interval.
+     * @return The timestamp where the interval starts.
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns whether the interval of this bucket ends before a timestamp.
+     * @param timestamp The timestamp to check.
+     * @return true if the timestamp belongs to a later interval.
+     */
+    boolean endsBefore(int timestamp) {
+        return timestamp >= start + resolution;
+    }
+
+    /**
+     * Adds a snapshot to this bucket.
+     * @param values The values of the snapshot, as serialized for the data lake.
+     * @return true if the snapshot was added, false if some of its values are missing.
+     */
+    boolean add(Map<String, String> values) {
+        double[] parsed = new double[sum.length];
+        try {
+            for (int s = 0; s < SEQUENCES.length; s++) {
+                for (int i = 0; i < numberOfServos; i++) {
+                    parsed[s * numberOfServos + i] =
+                            Double.parseDouble(values.get(SEQUENCES[s] + "_" + (i + 1)));
+                }
+            }
+        } catch (NumberFormatException | NullPointerException ex) {
+            return false;
+        }
+        for (int v = 0; v < parsed.length; v++) {
+            min[v] = Math.min(min[v], parsed[v]);
+            max[v] = Math.max(max[v], parsed[v]);
+            sum[v] += parsed[v];
+        }
+        count++;
+        if (!"0".equals(values.get("moving"))) {
+            movingCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether no snapshots have been added to this bucket.
+     * @return true if the bucket is empty.
+     */
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Serializes this bucket for storage in the data lake.
+     * @param twinId The ID of the twin the snapshots belong to.
+     * @param executionId The ID of the execution the snapshots belong to.
+     * @return The fields of the resulting hash.
+     */
+    Map<String, String> toHash(String twinId, String executionId) {
+        Map<String, String> hash = new HashMap<>();
+        hash.put("twinId", twinId);
+        hash.put("executionId", executionId);
+        hash.put("timestamp", start + "");
+        hash.put("resolution", resolution + "");
+        hash.put("count", count + "");
+        hash.put("movingRatio", ((double) movingCount / count) + "");
+        for (int s = 0; s < SEQUENCES.length; s++) {
+            for (int i = 0; i < numberOfServos; i++) {
+                int v = s * numberOfServos + i;
+                String field = SEQUENCES[s] + "_" + (i + 1);
+                hash.put(field + "_min", min[v] + "");
+                hash.put(field + "_max", max[v] + "");
+                hash.put(field + "_mean", (sum[v] / count) + "");
+            }
+        }
+        return hash;
+    }
+
+}
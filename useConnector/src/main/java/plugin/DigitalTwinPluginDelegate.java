@@ -9,10 +9,17 @@ import pubsub.*;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import utils.DTLogger;
+import utils.Metrics;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
@@ -24,20 +31,18 @@ public class DigitalTwinPluginDelegate implements IPluginActionDelegate {
     private static final String DL_COMMAND_COUNTER = "commandCounter";
 
     private JedisPool jedisPool;
-    private ExecutorService executor;
+    private ScheduledExecutorService executor;
     private boolean connectionIsActive;
     private OutPubService outPublisher;
     private OutPubService commandOutPublisher;
     private InPubService commandInPublisher;
     private TimePubService timePublisher;
-    private Thread outChannelSubscriberThread;
-    private Thread commandOutChannelSubscriberThread;
-    private Thread commandInChannelSubscriberThread;
-    private Thread timeChannelSubscriberThread;
-    private DTPubSub outPubSub;
-    private DTPubSub commandOutPubSub;
-    private DTPubSub commandInPubSub;
-    private DTPubSub timePubSub;
+    private ExecutorService subscriberWorkers;
+    private Thread subscriberThread;
+    private DTPubSub pubSub;
+    private OutputSnapshotsManager outputSnapshotsManager;
+    private CommandManager commandManager;
+    private CommandResultManager commandResultManager;
     private DTUseFacade useApi;
 
     /**
@@ -68,50 +73,42 @@ public class DigitalTwinPluginDelegate implements IPluginActionDelegate {
     private void connect(IPluginAction pluginAction) {
         setApi(pluginAction);
         JedisPoolConfig poolConfig = new JedisPoolConfig();
-        poolConfig.setMaxTotal(20);
+        poolConfig.setMaxTotal(Math.max(20,
+                DriverConfig.NUM_EXECUTOR_POOL_THREADS + DriverConfig.NUM_SUBSCRIBER_POOL_THREADS + 2));
         jedisPool = new JedisPool(poolConfig, DriverConfig.REDIS_HOSTNAME);
         if (checkConnectionWithDatabase()) {
 
+            // Create managers, shared by publishers and subscribers
+            outputSnapshotsManager = new OutputSnapshotsManager(useApi);
+            commandManager = new CommandManager(useApi);
+            commandResultManager = new CommandResultManager(useApi);
+
             // Initialize USE model
             initializeModel();
+            outputSnapshotsManager.startListening();
+            commandResultManager.startListening();
 
             // Create publishing services
-            outPublisher = new OutPubService(DTPubSub.DT_OUT_CHANNEL, jedisPool,
-                    new OutputSnapshotsManager(useApi));
+            outPublisher = new OutPubService(DTPubSub.DT_OUT_CHANNEL, jedisPool, outputSnapshotsManager);
             commandOutPublisher = new OutPubService(DTPubSub.COMMAND_OUT_CHANNEL, jedisPool,
-                    new CommandResultManager(useApi));
-            commandInPublisher = new InPubService(DTPubSub.COMMAND_IN_CHANNEL, jedisPool,
-                    new CommandManager(useApi));
+                    commandResultManager);
+            commandInPublisher = new InPubService(DTPubSub.COMMAND_IN_CHANNEL, jedisPool, commandManager);
             timePublisher = new TimePubService(DTPubSub.TIME_CHANNEL, jedisPool, useApi);
             ensureThreadPool();
-            executor.submit(outPublisher);
-            executor.submit(commandOutPublisher);
-            executor.submit(commandInPublisher);
-            executor.submit(timePublisher);
-
-            outPubSub = new DTPubSub(useApi, jedisPool);
-            commandOutPubSub = new DTPubSub(useApi, jedisPool);
-            commandInPubSub = new DTPubSub(useApi, jedisPool);
-            timePubSub = new DTPubSub(useApi, jedisPool);
-
-            // Create subscribing threads
-            outChannelSubscriberThread = new Thread(
-                    new SubService(outPubSub, jedisPool, DTPubSub.DT_OUT_CHANNEL),
-                    DTPubSub.DT_OUT_CHANNEL + " subscriber thread");
-            commandOutChannelSubscriberThread = new Thread(
-                    new SubService(commandOutPubSub, jedisPool, DTPubSub.COMMAND_OUT_CHANNEL),
-                    DTPubSub.COMMAND_OUT_CHANNEL + " subscriber thread");
-            commandInChannelSubscriberThread = new Thread(
-                    new SubService(commandInPubSub, jedisPool, DTPubSub.COMMAND_IN_CHANNEL),
-                    DTPubSub.COMMAND_IN_CHANNEL + " subscriber thread");
-            timeChannelSubscriberThread = new Thread(
-                    new SubService(timePubSub, jedisPool, DTPubSub.TIME_CHANNEL),
-                    DTPubSub.TIME_CHANNEL + " subscriber thread");
-            outChannelSubscriberThread.start();
-            commandOutChannelSubscriberThread.start();
-            commandInChannelSubscriberThread.start();
-            timeChannelSubscriberThread.start();
-
+            outPublisher.start(executor);
+            commandOutPublisher.start(executor);
+            commandInPublisher.start(executor);
+            timePublisher.start(executor);
+
+            // Create a single subscribing thread for all channels
+            subscriberWorkers = Executors.newFixedThreadPool(DriverConfig.NUM_SUBSCRIBER_POOL_THREADS);
+            pubSub = new DTPubSub(useApi, jedisPool,
+                    outputSnapshotsManager, commandManager, commandResultManager, subscriberWorkers);
+            subscriberThread = new Thread(
+                    new SubService(pubSub, jedisPool, DTPubSub.ALL_CHANNEL_PATTERNS), "Subscriber thread");
+            subscriberThread.start();
+
+            registerMetrics();
             connectionIsActive = true;
         }
     }
@@ -130,18 +127,18 @@ public class DigitalTwinPluginDelegate implements IPluginActionDelegate {
             commandOutPublisher.waitUntilFinished();
             commandInPublisher.waitUntilFinished();
             timePublisher.waitUntilFinished();
+            outputSnapshotsManager.stopListening();
+            commandResultManager.stopListening();
+            saveOpenRollups();
 
             DTLogger.info("Unsubscribing SubServices...");
-            outPubSub.unsubscribe(DTPubSub.DT_OUT_CHANNEL);
-            commandOutPubSub.unsubscribe(DTPubSub.COMMAND_OUT_CHANNEL);
-            commandInPubSub.unsubscribe(DTPubSub.COMMAND_IN_CHANNEL);
-            timePubSub.unsubscribe(DTPubSub.TIME_CHANNEL);
-
-            outChannelSubscriberThread.join();
-            commandOutChannelSubscriberThread.join();
-            commandInChannelSubscriberThread.join();
-            timeChannelSubscriberThread.join();
+            pubSub.punsubscribe();
+            subscriberThread.join();
+            subscriberWorkers.shutdown();
+            subscriberWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
             executor.shutdown();
+            useApi.shutdown();
+            Metrics.unregisterMBeans();
             connectionIsActive = false;
             DTLogger.info("Connection ended successfully");
         } catch (InterruptedException ex) {
@@ -149,6 +146,44 @@ public class DigitalTwinPluginDelegate implements IPluginActionDelegate {
         }
     }
 
+    /**
+     * Stores the snapshot rollups whose interval has not ended yet, once the publishers have stopped.
+     */
+    private void saveOpenRollups() {
+        try (Jedis jedis = jedisPool.getResource()) {
+            outputSnapshotsManager.saveOpenAggregateRegisters(jedis);
+        } catch (RuntimeException ex) {
+            DTLogger.error("Could not save the open snapshot rollups", ex);
+        }
+    }
+
+    /**
+     * Registers the connector's metrics as JMX MBeans, including the gauges of the backlogs in the data lake.
+     */
+    private void registerMetrics() {
+        String commandType = commandManager.getObjectType();
+        Metrics.gauge("input." + commandType + ".unprocessed", () -> countQueuedCommands("UNPROCESSED"));
+        Metrics.gauge("input." + commandType + ".processing", () -> countQueuedCommands("PROCESSING"));
+        Metrics.registerMBeans();
+    }
+
+    /**
+     * Counts the commands of all the twins in one of the command sorted sets of the data lake.
+     * @param queue The name of the sorted set: "UNPROCESSED" or "PROCESSING".
+     * @return The number of commands.
+     */
+    private long countQueuedCommands(String queue) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> counts = new ArrayList<>();
+            for (String twinId : commandManager.getTwinIds()) {
+                counts.add(pipeline.zcard(commandManager.getQueueKey(twinId, queue)));
+            }
+            pipeline.sync();
+            return counts.stream().mapToLong(Response::get).sum();
+        }
+    }
+
     /**
      * Sets the USE API instance to use.
      * @param pluginAction A reference to the currently running USE instance.
@@ -179,7 +214,7 @@ public class DigitalTwinPluginDelegate implements IPluginActionDelegate {
      */
     private void ensureThreadPool() {
         if (executor == null || executor.isShutdown()) {
-            executor = Executors.newFixedThreadPool(DriverConfig.NUM_EXECUTOR_POOL_THREADS);
+            executor = Executors.newScheduledThreadPool(DriverConfig.NUM_EXECUTOR_POOL_THREADS);
         }
     }
 
@@ -192,15 +227,24 @@ public class DigitalTwinPluginDelegate implements IPluginActionDelegate {
             jedis.set(TimePubService.DT_NOW, "0");
             useApi.setTime(0);
             jedis.set(DL_COMMAND_COUNTER, "0");
+            InputManager.loadScripts(jedis);
+            commandManager.recoverClaimedObjects(jedis);
         } catch (Exception ex) {
             DTLogger.error("Error initializing USE model:", ex);
         }
     }
 
+    /**
+     * Sets the execution ID of every robot in the model, and starts claiming the commands of each robot.
+     * All the robots share the execution ID, which identifies the connection; their data is kept apart
+     * by their twin IDs.
+     * @param jedis An instance of the Jedis client to access the data lake.
+     */
     private void setExecutionIds(Jedis jedis) {
         String posixTime = System.currentTimeMillis() + "";
         for (MObjectState robot : useApi.getObjectsOfClass("BraccioRobot")) {
             useApi.setAttribute(robot, "executionId", posixTime);
+            commandManager.addTwin(useApi.getStringAttribute(robot, "twinId"));
         }
         jedis.set(DL_EXECUTION_ID, posixTime);
     }
@@ -2,15 +2,70 @@ package plugin;
 
 public class DriverConfig {
 
-    // Milliseconds to wait between checks for commands and snapshots.
+    // Maximum milliseconds to wait for new snapshots and command results before checking again.
     public static final long SLEEP_TIME_MS = 2000;
 
-    // Milliseconds to wait between tick checks.
+    // Maximum seconds to block while waiting for new commands in the data lake.
+    public static final int COMMAND_WAIT_TIME_S = 1;
+
+    // Maximum number of commands of each twin claimed from the data lake and not yet saved to the USE model.
+    // Further commands stay queued in the data lake until the connector catches up.
+    public static final int MAX_CLAIMED_COMMANDS = 1000;
+
+    // Milliseconds to wait before claiming again when every twin has MAX_CLAIMED_COMMANDS claimed commands.
+    public static final int CLAIM_RETRY_DELAY_MS = 10;
+
+    // Maximum number of commands saved to the USE model in a single model task, so that clock ticks and
+    // output publishing are not delayed by a flood of commands.
+    public static final int COMMANDS_PER_MODEL_TASK = 32;
+
+    // Number of times in a row a batch of commands (or its acknowledgement) is retried before it is
+    // skipped. Skipped commands stay in the "PROCESSING" queue of the data lake.
+    public static final int MAX_BATCH_ATTEMPTS = 5;
+
+    // Maximum number of output objects to write to the data lake in a single pipeline.
+    public static final int OUTPUT_BATCH_SIZE = 100;
+
+    // Whether to store runs of identical snapshots of a stationary robot as a single range entry.
+    public static final boolean SNAPSHOT_IDLE_COMPRESSION = false;
+
+    // Whether to store the servo values and flags of each snapshot as a single packed binary field
+    // instead of one string field per value.
+    public static final boolean SNAPSHOT_PACKED_ENCODING = false;
+
+    // Whether to store per-second and per-minute rollups of the snapshots of each twin as they are saved.
+    public static final boolean SNAPSHOT_ROLLUPS_ENABLED = false;
+
+    // Milliseconds of raw snapshots to keep for each twin, counted back from its latest snapshot.
+    // The last snapshot before that window is also kept. 0 keeps every snapshot.
+    public static final int SNAPSHOT_RETENTION_MS = 0;
+
+    // Milliseconds of per-second rollups to keep for each twin, counted back from its latest rollup.
+    // 0 keeps every rollup. Per-minute rollups are always kept.
+    public static final int SNAPSHOT_SECOND_ROLLUP_RETENTION_MS = 0;
+
+    // Milliseconds between ticks of the clock of the USE model.
     public static final int TICK_PERIOD_MS = 100;
 
+    // Milliseconds to wait between tick checks while the clock of the Digital Twin is advancing.
+    public static final int MIN_POLL_DELAY_MS = 10;
+
+    // Maximum milliseconds to wait between tick checks while the clock of the Digital Twin is stopped.
+    // The wait doubles after each check that finds no change, starting from MIN_POLL_DELAY_MS.
+    public static final int MAX_POLL_DELAY_MS = 1000;
+
+    // Whether to advance the clock with the native FastForwardKernel instead of the SOIL operations
+    // when the active objects of the model allow it.
+    public static final boolean FAST_FORWARD_ENABLED = false;
+
     // Number of threads to use.
     public static final int NUM_EXECUTOR_POOL_THREADS = 10;
 
+    // Number of threads that handle the messages received by the subscriber. Messages of the same
+    // channel are never handled concurrently, but each twin has its own output and command channels,
+    // so twins are handled in parallel up to this number of threads.
+    public static final int NUM_SUBSCRIBER_POOL_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
     // Hostname of the Redis instance that contains the data lake.
     public static final String REDIS_HOSTNAME = "localhost";
 
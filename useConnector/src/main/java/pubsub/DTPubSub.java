@@ -9,10 +9,22 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPubSub;
 import utils.DTLogger;
+import utils.Metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
- * Class used by a SubService to listen to events generated by a PubService.
+ * Class used by a SubService to listen to events generated by the PubServices. A single instance
+ * listens to all the connector channels and handles each message on a worker pool. Messages of the
+ * same channel are handled one at a time, and messages received while a channel is being handled
+ * are coalesced into a single additional run of its handler.
+ * The output and command channels are partitioned by twin: their messages are published to
+ * "[channel]:[twinId]", so each twin has its own ordered lane, and different twins are handled in parallel.
  */
 public class DTPubSub extends JedisPubSub {
 
@@ -20,58 +32,160 @@ public class DTPubSub extends JedisPubSub {
     public static final String COMMAND_OUT_CHANNEL = "CommandOutChannel";
     public static final String COMMAND_IN_CHANNEL = "CommandInChannel";
     public static final String TIME_CHANNEL = "TimeChannel";
+    public static final String[] ALL_CHANNELS = {
+            DT_OUT_CHANNEL, COMMAND_OUT_CHANNEL, COMMAND_IN_CHANNEL, TIME_CHANNEL
+    };
+    public static final String[] ALL_CHANNEL_PATTERNS = {
+            DT_OUT_CHANNEL + ":*", COMMAND_OUT_CHANNEL + ":*", COMMAND_IN_CHANNEL + ":*", TIME_CHANNEL
+    };
 
     private final JedisPool jedisPool;
     private final OutputSnapshotsManager dtOutSnapshotsManager;
     private final CommandManager commandManager;
     private final CommandResultManager commandResultManager;
     private final DTUseFacade useApi;
+    private final ExecutorService workers;
+    private final Map<String, AtomicInteger> pendingMessages;
+    private final Map<String, Map<String, AtomicInteger>> lanes;
+    private final Map<String, Metrics.Histogram> latencies;
+    private final Metrics.Gauge clockLag;
 
     /**
-     * Default constructor.
+     * Default constructor. The managers are shared with the publishing services, so that objects
+     * queued by a manager are saved by the same manager.
      * @param useApi USE API facade instance to interact with the currently displayed object diagram
      * @param jedisPool A Jedis connection pool to access the data lake.
+     * @param dtOutSnapshotsManager Manager that saves output snapshots to the data lake.
+     * @param commandManager Manager that saves commands to the USE model.
+     * @param commandResultManager Manager that saves command results to the data lake.
+     * @param workers The thread pool where messages are handled.
      */
-    public DTPubSub(DTUseFacade useApi, JedisPool jedisPool) {
+    public DTPubSub(DTUseFacade useApi, JedisPool jedisPool,
+                    OutputSnapshotsManager dtOutSnapshotsManager, CommandManager commandManager,
+                    CommandResultManager commandResultManager, ExecutorService workers) {
         this.jedisPool = jedisPool;
-        dtOutSnapshotsManager = new OutputSnapshotsManager(useApi);
-        commandManager = new CommandManager(useApi);
-        commandResultManager = new CommandResultManager(useApi);
+        this.dtOutSnapshotsManager = dtOutSnapshotsManager;
+        this.commandManager = commandManager;
+        this.commandResultManager = commandResultManager;
         this.useApi = useApi;
+        this.workers = workers;
+        pendingMessages = new ConcurrentHashMap<>();
+        lanes = new HashMap<>();
+        latencies = new HashMap<>();
+        for (String channel : ALL_CHANNELS) {
+            Map<String, AtomicInteger> channelLanes = new ConcurrentHashMap<>();
+            lanes.put(channel, channelLanes);
+            latencies.put(channel, Metrics.histogram("pubsub." + channel + ".latencyNanos"));
+            Metrics.gauge("pubsub." + channel + ".pending",
+                    () -> channelLanes.values().stream().mapToLong(AtomicInteger::get).sum());
+        }
+        clockLag = Metrics.gauge("clock.lagMillis");
+    }
+
+    /**
+     * Returns the channel of a twin's lane.
+     * @param channel The output or command channel.
+     * @param twinId The ID of the twin.
+     * @return The channel where the messages of the twin are published.
+     */
+    public static String forTwin(String channel, String twinId) {
+        return channel + ":" + twinId;
     }
 
     /**
      * This method is called every time a message is received through a specific channel.
+     * The message is handled on the worker pool, unless a previous message of the same channel is
+     * still waiting to be handled.
      * @param channel Channel from which the message was received
      * @param message Message received
      */
     @Override
     public void onMessage(String channel, String message) {
+        AtomicInteger pending = pendingMessages.get(channel);
+        if (pending == null) {
+            int separator = channel.indexOf(':');
+            Map<String, AtomicInteger> channelLanes =
+                    lanes.get(separator >= 0 ? channel.substring(0, separator) : channel);
+            if (channelLanes == null) {
+                DTLogger.warn("Received message in unknown channel: " + channel);
+                return;
+            }
+            pending = pendingMessages.computeIfAbsent(channel,
+                    k -> channelLanes.computeIfAbsent(k, l -> new AtomicInteger(0)));
+        }
+        if (pending.getAndIncrement() == 0) {
+            AtomicInteger lane = pending;
+            long received = System.nanoTime();
+            workers.execute(() -> handleMessages(channel, lane, received));
+        }
+    }
+
+    /**
+     * This method is called every time a message is received through a channel matching a pattern.
+     * @param pattern The pattern the channel matches
+     * @param channel Channel from which the message was received
+     * @param message Message received
+     */
+    @Override
+    public void onPMessage(String pattern, String channel, String message) {
+        onMessage(channel, message);
+    }
+
+    /**
+     * Runs the handler of a channel until all the messages received for it have been handled.
+     * @param channel The channel whose messages to handle.
+     * @param pending The number of messages received and not handled yet.
+     * @param received When the first of the pending messages was received, as returned by System.nanoTime().
+     */
+    private void handleMessages(String channel, AtomicInteger pending, long received) {
+        int separator = channel.indexOf(':');
+        String baseChannel = separator >= 0 ? channel.substring(0, separator) : channel;
+        String twinId = separator >= 0 ? channel.substring(separator + 1) : null;
+        Metrics.Histogram latency = latencies.get(baseChannel);
+        int handled;
+        do {
+            handled = pending.get();
+            handleMessage(baseChannel, twinId);
+            latency.recordSince(received);
+            received = System.nanoTime();
+        } while (pending.addAndGet(-handled) > 0);
+    }
+
+    /**
+     * Handles the messages received through a specific channel.
+     * @param channel Channel from which the messages were received, without the twin ID
+     * @param twinId The twin whose lane the messages were received from, or null for the time channel
+     */
+    private void handleMessage(String channel, String twinId) {
         try (Jedis jedis = jedisPool.getResource()) {
             switch (channel) {
 
                 case DT_OUT_CHANNEL: // Info leaving USE
-                    dtOutSnapshotsManager.saveObjectsToDataLake(jedis);
-                    DTLogger.info("New Output Snapshots saved");
+                    dtOutSnapshotsManager.saveObjectsToDataLake(jedis, twinId);
+                    DTLogger.info(twinId, "New Output Snapshots saved");
                     break;
 
                 case COMMAND_IN_CHANNEL: // Commands entering USE
-                    commandManager.saveObjectsToUseModel(jedis);
-                    DTLogger.info("New Commands received");
+                    commandManager.saveObjectsToUseModel(jedis, twinId);
+                    DTLogger.info(twinId, "New Commands received");
                     break;
 
                 case COMMAND_OUT_CHANNEL: // Command results leaving USE
-                    commandResultManager.saveObjectsToDataLake(jedis);
-                    DTLogger.info("New Command Results saved");
+                    commandResultManager.saveObjectsToDataLake(jedis, twinId);
+                    DTLogger.info(twinId, "New Command Results saved");
                     break;
 
                 case TIME_CHANNEL: // Update USE model's timestamp
                     int dlTime = TimePubService.getDTTimestampInDataLake(jedis);
-                    int useTime = useApi.getCurrentTime();
-                    int ticks = (dlTime - useTime) / DriverConfig.TICK_PERIOD_MS;
-                    if (ticks > 0) {
-                        useApi.advanceTime(ticks);
-                    }
+                    useApi.execute(() -> {
+                        int useTime = useApi.getCurrentTime();
+                        clockLag.set(dlTime - useTime);
+                        int ticks = (dlTime - useTime) / DriverConfig.TICK_PERIOD_MS;
+                        if (ticks > 0) {
+                            useApi.advanceTime(ticks);
+                        }
+                        return null;
+                    });
                     break;
 
                 default:
@@ -94,4 +208,14 @@ public class DTPubSub extends JedisPubSub {
         DTLogger.info("Client is subscribed to channel " + channel);
     }
 
+    /**
+     * This method is called every time a process subscribes to a channel pattern.
+     * @param pattern Pattern of the channels to subscribe to
+     * @param subscribedChannels Channel identifier
+     */
+    @Override
+    public void onPSubscribe(String pattern, int subscribedChannels) {
+        DTLogger.info("Client is subscribed to channels " + pattern);
+    }
+
 }
@@ -6,10 +6,13 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import utils.DTLogger;
 
+import java.util.List;
+
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
  * Class for a thread that generates ("publishes") events whenever new information appears in the
- * Data Lake.
+ * Data Lake. It blocks on the Data Lake until new objects arrive, so they are published immediately.
+ * Events are published to the channel of each twin with new objects.
  */
 public class InPubService extends PubService {
 
@@ -23,23 +26,33 @@ public class InPubService extends PubService {
      * @param inputManager Manager to use to check for Data Lake objects.
      */
     public InPubService(String channel, JedisPool jedisPool, InputManager inputManager) {
-        super(channel, DriverConfig.SLEEP_TIME_MS);
+        super(channel, 0, 0);
         this.jedisPool = jedisPool;
         this.input = inputManager;
     }
 
     /**
-     * Checks periodically if there are new input objects in the Data Lake.
+     * Waits for new input objects in the Data Lake and claims them. The wait is bounded by
+     * DriverConfig.COMMAND_WAIT_TIME_S so that the service can be stopped. Since the wait ends as soon
+     * as new objects arrive, the next wait starts right away instead of backing off. The twins whose
+     * claimed objects could not be saved yet are published again, so that they are retried.
+     * @return true if new objects were claimed, or some twins have objects waiting to be saved.
      */
-    public void action() {
+    public boolean action() {
         try (Jedis jedis = jedisPool.getResource()) {
-            if (!input.getUnprocessedDLObjects(jedis).isEmpty()) {
-                jedis.publish(getChannel(), "New Information");
-                DTLogger.info(getChannel(), "New Information");
+            List<String> twinIds = input.claimNewObjects(jedis, DriverConfig.COMMAND_WAIT_TIME_S,
+                    DriverConfig.MAX_CLAIMED_COMMANDS);
+            if (!twinIds.isEmpty()) {
+                for (String twinId : twinIds) {
+                    jedis.publish(DTPubSub.forTwin(getChannel(), twinId), "New Information");
+                }
+                DTLogger.info(getChannel(), "New Information for " + twinIds.size() + " twin(s)");
+                return true;
             }
         } catch (Exception ex) {
             DTLogger.error("An error ocurred:", ex);
         }
+        return false;
     }
 
 }
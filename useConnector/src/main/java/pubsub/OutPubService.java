@@ -6,9 +6,13 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import utils.DTLogger;
 
+import java.util.List;
+
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
  * Class for a thread that generates ("publishes") events whenever new output snapshot or command objects appear.
+ * Instead of polling the model, it waits for the OutputManager to be notified of new objects.
+ * Events are published to the channel of each twin with new objects.
  */
 public class OutPubService extends PubService {
 
@@ -22,23 +26,33 @@ public class OutPubService extends PubService {
 	 * @param outputManager Manager to use to check for instances.
 	 */
 	public OutPubService(String channel, JedisPool jedisPool, OutputManager outputManager) {
-		super(channel, DriverConfig.SLEEP_TIME_MS);
+		super(channel, 0, 0);
 		this.jedisPool = jedisPool;
 		this.output = outputManager;
 	}
 	
 	/**
-	 * Checks periodically if there are new output objects in the currently displayed object diagram on USE.
+	 * Waits until new output objects are created in the currently displayed object diagram on USE.
+	 * The wait is bounded by DriverConfig.SLEEP_TIME_MS so that the service can be stopped. Since the wait
+	 * ends as soon as new objects appear, the next wait starts right away instead of backing off.
+	 * @return true if new objects were found.
 	 */
-	public void action() {
-		try (Jedis jedis = jedisPool.getResource()) {
-			if (!output.getUnprocessedModelObjects().isEmpty()) {
-				jedis.publish(getChannel(), "New Information");
-				DTLogger.info(getChannel(), "New Information");
+	public boolean action() {
+		try {
+			if (output.awaitNewObjects(DriverConfig.SLEEP_TIME_MS)) {
+				List<String> twinIds = output.partitionNewObjects();
+				try (Jedis jedis = jedisPool.getResource()) {
+					for (String twinId : twinIds) {
+						jedis.publish(DTPubSub.forTwin(getChannel(), twinId), "New Information");
+					}
+					DTLogger.info(getChannel(), "New Information for " + twinIds.size() + " twin(s)");
+				}
+				return true;
 			}
 		} catch (Exception ex) {
 		    DTLogger.error("An error ocurred:", ex);
 		}
+		return false;
     }
 
 }
@@ -1,56 +1,123 @@
 package pubsub;
 
 import utils.DTLogger;
+import utils.Metrics;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
- * Class for a thread that generates ("publishes") events.
+ * Class for a task that generates ("publishes") events. Each run of the task performs an action and
+ * schedules the next one: right after the minimum delay if the action found work, or after a delay that
+ * doubles with every idle run, up to a maximum, if it did not.
  */
 public abstract class PubService implements Runnable {
 
 	private final String channel;
-	private final long sleepTime;
+	private final long minDelay;
+	private final long maxDelay;
+	private final CountDownLatch finished;
+	private volatile long delay;
 	private boolean running;
-	private boolean finished;
-	
-	public PubService(String channel, long sleepTime) {
+	private boolean acting;
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> next;
+
+	/**
+	 * Default constructor.
+	 * @param channel The channel to send the events to
+	 * @param minDelay Milliseconds to wait before the next action after finding work
+	 * @param maxDelay Maximum milliseconds to wait before the next action while idle
+	 */
+	public PubService(String channel, long minDelay, long maxDelay) {
 		this.channel = channel;
-		this.sleepTime = sleepTime;
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.finished = new CountDownLatch(1);
+		delay = minDelay;
 		running = true;
-		finished = false;
+		Metrics.gauge("pubsub." + channel + ".pollDelayMillis", () -> delay);
 	}
 
 	public String getChannel() {
 		return channel;
 	}
 
+	/**
+	 * Starts performing the action of this service.
+	 * @param scheduler The executor used to schedule each run of the action.
+	 */
+	public void start(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+		scheduler.execute(this);
+	}
+
 	public void run() {
-		while (running) {
-			busyWait(sleepTime);
-			action();
+		synchronized (this) {
+			if (!running) {
+				finish();
+				return;
+			}
+			// From now on, only this run can finish the service
+			acting = true;
+			next = null;
+		}
+		boolean found = false;
+		try {
+			found = action();
+		} finally {
+			synchronized (this) {
+				acting = false;
+				delay = found ? minDelay : Math.min(maxDelay, Math.max(delay * 2, 1));
+				if (running) {
+					try {
+						next = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+					} catch (RejectedExecutionException ex) {
+						DTLogger.warn(channel, "Scheduler is shut down");
+						finish();
+					}
+				} else {
+					finish();
+				}
+			}
 		}
-		finished = true;
-		DTLogger.info(channel, "PubService stopped");
 	}
 
-	public void stop() {
+	/**
+	 * Stops the service. If an action is being performed, the service finishes when it ends; otherwise,
+	 * the next scheduled action is cancelled and the service finishes immediately.
+	 */
+	public synchronized void stop() {
 		running = false;
-	}
-
-	public void waitUntilFinished() {
-		while (!finished) {
-			busyWait(50);
+		if (acting) {
+			return;
+		}
+		// A run that has started but not yet acquired the lock finishes by itself when cancel fails,
+		// and does nothing if cancel succeeds, since FutureTask.cancel also succeeds on a running task
+		if (next == null || next.cancel(false)) {
+			finish();
 		}
 	}
 
-	protected abstract void action();
+	public void waitUntilFinished() throws InterruptedException {
+		finished.await();
+	}
 
-	protected void busyWait(long millis) {
-		try {
-			Thread.sleep(millis);
-		} catch (InterruptedException ex) {
-			DTLogger.error(channel, "Wait interrupted", ex);
+	private synchronized void finish() {
+		if (finished.getCount() > 0) {
+			finished.countDown();
+			DTLogger.info(channel, "PubService stopped");
 		}
 	}
 
+	/**
+	 * Performs the action of the service once.
+	 * @return true if the action found work to do, so that the next action is performed as soon as possible.
+	 */
+	protected abstract boolean action();
+
 }
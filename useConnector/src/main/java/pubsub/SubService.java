@@ -6,37 +6,40 @@ import utils.DTLogger;
 
 /**
  * @author Paula Muñoz, Daniel Pérez - University of Málaga
- * Class for a thread that subscribes to events from a PubService.
+ * Class for a thread that subscribes to events from one or more PubServices through a single connection.
+ * It subscribes to channel patterns, so that the channels of every twin are received.
  */
 public class SubService implements Runnable {
 	
 	private final DTPubSub pubsub;
 	private final JedisPool jedisPool;
-	private final String subscribedChannel;
+	private final String[] channelPatterns;
+	private final String tag;
 	
 	/**
 	 * Default constructor
 	 * 
 	 * @param pubsub The listener to be used to handle events
 	 * @param jedisPool	Jedis client pool, connected to the Data Lake
-	 * @param subscribedChannel	Channel to subscribe to
+	 * @param channelPatterns	Patterns of the channels to subscribe to
 	 */
-	public SubService(DTPubSub pubsub, JedisPool jedisPool, String subscribedChannel) {
+	public SubService(DTPubSub pubsub, JedisPool jedisPool, String... channelPatterns) {
 		this.pubsub = pubsub;
 		this.jedisPool = jedisPool;
-		this.subscribedChannel = subscribedChannel;
+		this.channelPatterns = channelPatterns;
+		this.tag = String.join(",", channelPatterns);
 	}
 
 	/**
-	 * Subscribes to the publisher channel specified in the constructor.
+	 * Subscribes to the publisher channel patterns specified in the constructor.
 	 */
 	public void run() {
-		DTLogger.info(subscribedChannel, "Subscribing to channel");
+		DTLogger.info(tag, "Subscribing to channels");
         try (Jedis jedisSubscriber = jedisPool.getResource()) {
-        	jedisSubscriber.subscribe(pubsub, subscribedChannel);
-        	DTLogger.info(subscribedChannel, "Subscription ended");
+        	jedisSubscriber.psubscribe(pubsub, channelPatterns);
+        	DTLogger.info(tag, "Subscription ended");
         } catch (Exception ex) {
-        	DTLogger.error(subscribedChannel, "An error ocurred:", ex);
+        	DTLogger.error(tag, "An error ocurred:", ex);
         }    
     }
 
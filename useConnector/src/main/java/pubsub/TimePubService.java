@@ -17,6 +17,7 @@ public class TimePubService extends PubService {
 
     private final JedisPool jedisPool;
     private final DTUseFacade useApi;
+    private int lastDlTime;
 
     /**
      * Default constructor.
@@ -25,7 +26,7 @@ public class TimePubService extends PubService {
      * @param useApi USE API facade instance to interact with the currently displayed object diagram.
      */
     public TimePubService(String channel, JedisPool jedisPool, DTUseFacade useApi) {
-        super(channel, DriverConfig.TICK_PERIOD_MS);
+        super(channel, DriverConfig.MIN_POLL_DELAY_MS, DriverConfig.MAX_POLL_DELAY_MS);
         this.jedisPool = jedisPool;
         this.useApi = useApi;
     }
@@ -33,26 +34,28 @@ public class TimePubService extends PubService {
     /**
      * Publish an event to make the clock tick if the Data Lake timestamp is greater than
      * the USE model's
+     * @return true if the Data Lake timestamp has changed since the last check.
      */
     @Override
-    protected void action() {
+    protected boolean action() {
         try (Jedis jedis = jedisPool.getResource()) {
             int dlTime = getDTTimestampInDataLake(jedis);
             int useTime = useApi.getCurrentTime();
             if (dlTime >= useTime + DriverConfig.TICK_PERIOD_MS) {
                 jedis.publish(getChannel(), "Tick received");
             }
+            boolean changed = dlTime != lastDlTime;
+            lastDlTime = dlTime;
+            return changed;
         } catch (Exception ex) {
             DTLogger.error("An error ocurred:", ex);
+            return false;
         }
     }
 
     static int getDTTimestampInDataLake(Jedis jedis) {
-        if (jedis.exists(DT_NOW)) {
-            return Integer.parseInt(jedis.get(DT_NOW));
-        } else {
-            return 0;
-        }
+        String dlTime = jedis.get(DT_NOW);
+        return dlTime != null ? Integer.parseInt(dlTime) : 0;
     }
 
 }
@@ -1,22 +1,62 @@
 package utils;
 
-import pubsub.PubService;
-
 import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author Daniel Pérez - University of Málaga
  * A collection of utility methods for printing text to the console.
+ * Messages are queued in a bounded ring buffer and printed by a background writer thread, so callers
+ * never wait for console I/O. Messages below the current level are discarded, and info messages can be
+ * limited to a maximum number per second for each tag (see setInfoRateLimit). If the buffer is full, info
+ * and warning messages are dropped (see getDroppedMessages), while error messages are printed immediately.
+ * Messages logged once per object can be split into a message and a detail (e.g., the ID of the object),
+ * which are only concatenated by the writer thread, so no string is built for the messages discarded.
  */
 @SuppressWarnings("unused")
 public class DTLogger {
 
+    /**
+     * The severity of a message. Only messages with a level equal to or above the current level are printed.
+     */
+    public enum Level { INFO, WARN, ERROR, OFF }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int DEFAULT_INFO_MESSAGES_PER_SECOND = 0;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final Entry[] buffer = new Entry[BUFFER_SIZE];
+    private static final AtomicLong tail = new AtomicLong(0);
+    private static volatile long head = 0;
+    private static final Thread writer;
+    private static volatile boolean writerWaiting = false;
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int infoMessagesPerSecond = DEFAULT_INFO_MESSAGES_PER_SECOND;
+    private static final Map<String, TagLimiter> limiters = new ConcurrentHashMap<>();
+    private static final Metrics.Counter dropped = Metrics.counter("logger.droppedMessages");
+    private static final Metrics.Counter suppressed = Metrics.counter("logger.suppressedMessages");
+
+    static {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            buffer[i] = new Entry(i);
+        }
+        writer = new Thread(DTLogger::writeMessages, "DTLogger writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(DTLogger::flush));
+    }
+
     /**
      * Prints a message to the standard output.
      * @param msg The message to print.
      */
     public static void info(String msg) {
-        log(System.out, "DT-INFO", msg);
+        log(Level.INFO, "DT-INFO", "", msg, null, null);
     }
 
     /**
@@ -24,7 +64,7 @@ public class DTLogger {
      * @param msg The message to print.
      */
     public static void warn(String msg) {
-        log(System.err, "DT-WARN", msg);
+        log(Level.WARN, "DT-WARN", "", msg, null, null);
     }
 
     /**
@@ -32,7 +72,7 @@ public class DTLogger {
      * @param msg The message to print.
      */
     public static void error(String msg) {
-        log(System.err, "DT-ERR", msg);
+        log(Level.ERROR, "DT-ERR", "", msg, null, null);
     }
 
     /**
@@ -41,7 +81,7 @@ public class DTLogger {
      * @param exception An exception to display.
      */
     public static void error(String msg, Exception exception) {
-        log(System.err, "DT-ERR", msg, exception);
+        log(Level.ERROR, "DT-ERR", "", msg, null, exception);
     }
 
     /**
@@ -50,7 +90,18 @@ public class DTLogger {
      * @param msg The message to print.
      */
     public static void info(String tag, String msg) {
-        log(System.out, "DT-INFO:" + tag, msg);
+        log(Level.INFO, "DT-INFO", tag, msg, null, null);
+    }
+
+    /**
+     * Prints a message followed by a detail to the standard output. Unlike <i>info(tag, msg + detail)</i>,
+     * the message is only built if it is printed, so it costs no allocation if it is discarded.
+     * @param tag A tag to prepend to the message.
+     * @param msg The message to print.
+     * @param detail The text to append to the message, e.g., the ID of an object.
+     */
+    public static void info(String tag, String msg, String detail) {
+        log(Level.INFO, "DT-INFO", tag, msg, detail, null);
     }
 
     /**
@@ -59,7 +110,7 @@ public class DTLogger {
      * @param msg The message to print.
      */
     public static void warn(String tag, String msg) {
-        log(System.err, "DT-WARN:" + tag, msg);
+        log(Level.WARN, "DT-WARN", tag, msg, null, null);
     }
 
     /**
@@ -68,7 +119,7 @@ public class DTLogger {
      * @param msg The message to print.
      */
     public static void error(String tag, String msg) {
-        log(System.err, "DT-ERR:" + tag, msg);
+        log(Level.ERROR, "DT-ERR", tag, msg, null, null);
     }
 
     /**
@@ -78,17 +129,238 @@ public class DTLogger {
      * @param exception An exception to display.
      */
     public static void error(String tag, String msg, Exception exception) {
-        log(System.err, "DT-ERR:" + tag, msg, exception);
+        log(Level.ERROR, "DT-ERR", tag, msg, null, exception);
     }
 
-    private static void log(PrintStream stream, String tag, String msg) {
-        log(stream, tag, msg, null);
+    /**
+     * Sets the minimum level of the messages to print.
+     * @param newLevel The new level. Level.OFF disables all messages.
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
     }
-    private static synchronized void log(PrintStream stream, String tag, String msg, Exception exception) {
-        stream.println("[" + tag + "] " + msg);
+
+    /**
+     * Returns the minimum level of the messages to print.
+     * @return The current level.
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the maximum number of info messages to print per second for each tag. Info messages
+     * above this limit are discarded, and the number of discarded messages is printed by the writer
+     * thread once the second ends. The limit is disabled by default.
+     * @param messagesPerSecond The maximum number of messages, or 0 to disable the limit.
+     */
+    public static void setInfoRateLimit(int messagesPerSecond) {
+        infoMessagesPerSecond = messagesPerSecond;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Returns the number of messages discarded because the buffer was full.
+     * @return The number of dropped messages since the connector started.
+     */
+    public static long getDroppedMessages() {
+        return dropped.getCount();
+    }
+
+    /**
+     * Returns the number of info messages discarded by the rate limit.
+     * @return The number of suppressed messages since the connector started.
+     */
+    public static long getSuppressedMessages() {
+        return suppressed.getCount();
+    }
+
+    /**
+     * Waits until all the queued messages have been printed.
+     */
+    public static void flush() {
+        long target = tail.get();
+        while (head < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void log(Level msgLevel, String prefix, String tag, String msg, String detail,
+                            Exception exception) {
+        if (msgLevel.compareTo(level) < 0) {
+            return;
+        }
+        if (msgLevel == Level.INFO && !tryAcquire(prefix, tag)) {
+            return;
+        }
+        if (!offer(msgLevel, prefix, tag, msg, detail, exception)) {
+            if (msgLevel == Level.ERROR) {
+                print(System.err, prefix, tag, msg, detail, exception);
+            } else {
+                dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Checks the rate limit of a tag for an info message.
+     * @param prefix The prefix of the message.
+     * @param tag The tag of the message.
+     * @return true if the message can be printed.
+     */
+    private static boolean tryAcquire(String prefix, String tag) {
+        int limit = infoMessagesPerSecond;
+        if (limit <= 0) {
+            return true;
+        }
+        TagLimiter limiter = limiters.computeIfAbsent(tag, k -> new TagLimiter(prefix));
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        synchronized (limiter) {
+            if (limiter.second != second) {
+                limiter.second = second;
+                limiter.count = 0;
+            }
+            if (++limiter.count > limit) {
+                limiter.suppressed++;
+                suppressed.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prints the number of info messages of each tag suppressed by the rate limit in the seconds that
+     * have ended. Called from the writer thread, so the summaries are printed in order with the messages,
+     * even if no more messages of the tag arrive.
+     */
+    private static void printSuppressedMessages() {
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        for (Map.Entry<String, TagLimiter> entry : limiters.entrySet()) {
+            TagLimiter limiter = entry.getValue();
+            int suppressedMessages;
+            synchronized (limiter) {
+                if (limiter.second == second || limiter.suppressed == 0) {
+                    continue;
+                }
+                suppressedMessages = limiter.suppressed;
+                limiter.suppressed = 0;
+            }
+            print(System.out, limiter.prefix, entry.getKey(),
+                    suppressedMessages + " message(s) suppressed by the rate limit", null, null);
+        }
+    }
+
+    /**
+     * Queues a message in the ring buffer.
+     * @return false if the buffer is full.
+     */
+    private static boolean offer(Level msgLevel, String prefix, String tag, String msg, String detail,
+                                 Exception exception) {
+        while (true) {
+            long position = tail.get();
+            Entry entry = buffer[(int) (position % BUFFER_SIZE)];
+            long difference = entry.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    entry.level = msgLevel;
+                    entry.prefix = prefix;
+                    entry.tag = tag;
+                    entry.msg = msg;
+                    entry.detail = detail;
+                    entry.exception = exception;
+                    entry.sequence = position + 1;
+                    if (writerWaiting) {
+                        LockSupport.unpark(writer);
+                    }
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    private static void writeMessages() {
+        long nextReport = System.nanoTime();
+        while (true) {
+            if (infoMessagesPerSecond > 0 && System.nanoTime() - nextReport >= 0) {
+                printSuppressedMessages();
+                nextReport = System.nanoTime() + REPORT_INTERVAL_NANOS;
+            }
+            Entry entry = buffer[(int) (head % BUFFER_SIZE)];
+            if (entry.sequence == head + 1) {
+                print(entry.level == Level.INFO ? System.out : System.err,
+                        entry.prefix, entry.tag, entry.msg, entry.detail, entry.exception);
+                entry.msg = null;
+                entry.detail = null;
+                entry.exception = null;
+                entry.sequence = head + BUFFER_SIZE;
+                head++;
+            } else {
+                writerWaiting = true;
+                if (entry.sequence != head + 1) {
+                    if (infoMessagesPerSecond > 0) {
+                        // Wake up to print the summaries of the rate limit
+                        LockSupport.parkNanos(REPORT_INTERVAL_NANOS);
+                    } else {
+                        LockSupport.park();
+                    }
+                }
+                writerWaiting = false;
+            }
+        }
+    }
+
+    private static void print(PrintStream stream, String prefix, String tag, String msg, String detail,
+                              Exception exception) {
+        String text = detail != null ? msg + detail : msg;
+        if (tag.isEmpty()) {
+            stream.println("[" + prefix + "] " + text);
+        } else {
+            stream.println("[" + prefix + ":" + tag + "] " + text);
+        }
         if (exception != null) {
             exception.printStackTrace();
         }
     }
 
+    /**
+     * A slot of the ring buffer. Its sequence tells whether it is free (position) or contains a
+     * message queued in that position (position + 1).
+     */
+    private static class Entry {
+
+        private volatile long sequence;
+        private Level level;
+        private String prefix;
+        private String tag;
+        private String msg;
+        private String detail;
+        private Exception exception;
+
+        private Entry(long sequence) {
+            this.sequence = sequence;
+        }
+
+    }
+
+    /**
+     * The number of info messages of a tag printed in the current second, and the number suppressed
+     * since the last summary. Guarded by the limiter itself.
+     */
+    private static class TagLimiter {
+
+        private final String prefix;
+        private long second = -1;
+        private int count = 0;
+        private int suppressed = 0;
+
+        private TagLimiter(String prefix) {
+            this.prefix = prefix;
+        }
+
+    }
+
 }
@@ -0,0 +1,306 @@
+package utils;
+
+import org.tzi.use.analysis.coverage.CoverageCalculationVisitor;
+import org.tzi.use.analysis.coverage.CoverageData;
+import org.tzi.use.uml.mm.MAssociation;
+import org.tzi.use.uml.mm.MAttribute;
+import org.tzi.use.uml.mm.MClass;
+import org.tzi.use.uml.ocl.value.Value;
+import org.tzi.use.uml.sys.MObject;
+import org.tzi.use.uml.sys.MObjectState;
+import org.tzi.use.uml.sys.MSystem;
+import org.tzi.use.uml.sys.MSystemState;
+import org.tzi.use.uml.sys.events.AttributeAssignedEvent;
+
+import java.util.*;
+
+/**
+ * Keeps the derived attributes of a USE model up to date by recomputing only those whose inputs
+ * have changed. The attributes, associations and classes each derive expression reads are computed
+ * once from the model, and the changes to the model (assigned attributes, created and destroyed
+ * objects) are recorded until the next update. The update then evaluates the affected derived
+ * attributes for the instances of their classes, and the derived attributes of the new objects,
+ * repeating with the derived attributes whose values changed until no more values change.
+ * <p>
+ * The changes made by SOIL statements (e.g., operation calls) are tracked by USE itself, which updates
+ * all the derived values after them. Other changes that are not recorded individually must be reported
+ * with <i>invalidateAll</i>, which makes the next update evaluate every derived attribute.
+ * All methods must be called from the model thread.
+ */
+public class DerivedValueTracker {
+
+    private final MSystem system;
+    private final Metrics.Counter fullUpdates = Metrics.counter("model.derivedFullUpdates");
+    private final Metrics.Counter partialUpdates = Metrics.counter("model.derivedPartialUpdates");
+    private final Metrics.Counter evaluations = Metrics.counter("model.derivedEvaluations");
+    private final Metrics.Histogram updateTime = Metrics.histogram("model.derivedUpdateNanos");
+
+    // Dependencies of the derived attributes, computed the first time they are needed
+    private List<MAttribute> derivedAttributes;
+    private Map<MAttribute, Set<MAttribute>> dependentsOfAttribute;
+    private Map<MAssociation, Set<MAttribute>> dependentsOfAssociation;
+    private Map<MClass, Set<MAttribute>> dependentsOfClass;
+    private final Map<MClass, Set<MAttribute>> dependentsOfInstances;
+    private final Map<MClass, List<MAttribute>> derivedAttributesOfClass;
+
+    // Changes since the last update
+    private boolean invalidated;
+    private final Set<MAttribute> changedAttributes;
+    private final Set<MClass> changedClasses;
+    private final Set<MAssociation> changedAssociations;
+    private final Set<MObject> newObjects;
+
+    /**
+     * Default constructor.
+     * @param system The USE system whose derived values to keep up to date.
+     */
+    public DerivedValueTracker(MSystem system) {
+        this.system = system;
+        dependentsOfInstances = new HashMap<>();
+        derivedAttributesOfClass = new HashMap<>();
+        invalidated = false;
+        changedAttributes = new HashSet<>();
+        changedClasses = new HashSet<>();
+        changedAssociations = new HashSet<>();
+        newObjects = new HashSet<>();
+    }
+
+    /**
+     * Returns whether there are changes to the model that have not been applied to the derived values.
+     * @return true if the next call to <i>update</i> has work to do.
+     */
+    public boolean isPending() {
+        return invalidated || !changedAttributes.isEmpty() || !changedClasses.isEmpty()
+                || !changedAssociations.isEmpty() || !newObjects.isEmpty();
+    }
+
+    /**
+     * Makes the next update recompute every derived value, e.g., after executing SOIL statements.
+     */
+    public void invalidateAll() {
+        invalidated = true;
+    }
+
+    /**
+     * Records the creation of an object.
+     * @param object The new object.
+     */
+    public void objectCreated(MObject object) {
+        newObjects.add(object);
+        changedClasses.add(object.cls());
+    }
+
+    /**
+     * Records the destruction of an object, which also deletes its links.
+     * @param object The destroyed object.
+     */
+    public void objectDestroyed(MObject object) {
+        MClass mclass = object.cls();
+        newObjects.remove(object);
+        changedClasses.add(mclass);
+        changedAssociations.addAll(mclass.allAssociations());
+    }
+
+    /**
+     * Records the assignment of an attribute. Assignments to objects created since the last update
+     * are not recorded: their derived values are computed anyway, and other objects can only read
+     * them through links, which are not created without invalidating the whole state.
+     * @param object The object whose attribute has been assigned.
+     * @param attribute The assigned attribute.
+     */
+    public void attributeChanged(MObject object, MAttribute attribute) {
+        if (!newObjects.contains(object)) {
+            changedAttributes.add(attribute);
+        }
+    }
+
+    /**
+     * Updates the derived values affected by the changes recorded since the last update.
+     */
+    public void update() {
+        MSystemState state = system.state();
+        // The changes made by SOIL statements are tracked by USE, which updates all the derived values
+        // only if some statement has been executed since its last update
+        state.updateDerivedValues(true);
+        if (!isPending()) {
+            return;
+        }
+        long start = System.nanoTime();
+        loadDependencies();
+        if (invalidated) {
+            propagate(state, new LinkedHashSet<>(derivedAttributes), Collections.emptySet());
+            fullUpdates.increment();
+        } else {
+            updateAffected(state);
+            partialUpdates.increment();
+        }
+        invalidated = false;
+        changedAttributes.clear();
+        changedClasses.clear();
+        changedAssociations.clear();
+        newObjects.clear();
+        updateTime.recordSince(start);
+    }
+
+    private void updateAffected(MSystemState state) {
+        if (dependentsOfAttribute == null) {
+            propagate(state, new LinkedHashSet<>(derivedAttributes), Collections.emptySet());
+            return;
+        }
+        Set<MAttribute> affected = new LinkedHashSet<>();
+        for (MAttribute attribute : changedAttributes) {
+            affected.addAll(dependentsOf(attribute));
+        }
+        for (MAssociation association : changedAssociations) {
+            affected.addAll(dependentsOfAssociation.getOrDefault(association, Collections.emptySet()));
+        }
+        for (MClass mclass : changedClasses) {
+            affected.addAll(dependentsOfInstances(mclass));
+        }
+
+        // The new objects need all their derived values, which are then kept up to date as any other
+        Set<MAttribute> changed = new HashSet<>();
+        for (MObject object : newObjects) {
+            if (object.exists(state)) {
+                for (MAttribute attribute : derivedAttributesOf(object.cls())) {
+                    if (!affected.contains(attribute) && evaluate(state, object, attribute)) {
+                        changed.add(attribute);
+                    }
+                }
+            }
+        }
+        propagate(state, affected, changed);
+    }
+
+    /**
+     * Evaluates some derived attributes for all the instances of their classes. Derived attributes can
+     * read other derived attributes, so the evaluation is repeated with the attributes that depend on
+     * the ones whose values have changed, until no value changes.
+     * @param affected The derived attributes to evaluate.
+     * @param changed Derived attributes whose values have already changed.
+     */
+    private void propagate(MSystemState state, Set<MAttribute> affected, Set<MAttribute> changed) {
+        Set<MAttribute> next = new LinkedHashSet<>(affected);
+        changed = new HashSet<>(changed);
+        for (int round = 0; round <= derivedAttributes.size(); round++) {
+            for (MAttribute attribute : next) {
+                for (MObject object : state.objectsOfClassAndSubClasses(attribute.owner())) {
+                    if (evaluate(state, object, attribute)) {
+                        changed.add(attribute);
+                    }
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            next = new LinkedHashSet<>();
+            for (MAttribute attribute : changed) {
+                next.addAll(dependentsOf(attribute));
+            }
+            changed.clear();
+        }
+        DTLogger.warn("The derived values are still changing after " + derivedAttributes.size()
+                + " rounds, there may be a cycle of derived attributes");
+    }
+
+    /**
+     * Returns the derived attributes that read an attribute, or all of them if the dependencies are unknown.
+     */
+    private Set<MAttribute> dependentsOf(MAttribute attribute) {
+        if (dependentsOfAttribute == null) {
+            return new LinkedHashSet<>(derivedAttributes);
+        }
+        return dependentsOfAttribute.getOrDefault(attribute, Collections.emptySet());
+    }
+
+    /**
+     * Evaluates the derive expression of an attribute for an object and assigns the result.
+     * @return true if the value of the attribute has changed.
+     */
+    private boolean evaluate(MSystemState state, MObject object, MAttribute attribute) {
+        evaluations.increment();
+        MObjectState objstate = object.state(state);
+        Value value = state.evaluateDeriveExpression(object, attribute);
+        if (value.equals(objstate.attributeValue(attribute))) {
+            return false;
+        }
+        objstate.setAttributeValue(attribute, value);
+        system.getEventBus().post(
+                new AttributeAssignedEvent(system.getExecutionContext(), object, attribute, value));
+        return true;
+    }
+
+    /**
+     * Returns the derived attributes that read the instances of a class, directly or through one of
+     * its superclasses (e.g., with allInstances).
+     */
+    private Set<MAttribute> dependentsOfInstances(MClass mclass) {
+        return dependentsOfInstances.computeIfAbsent(mclass, c -> {
+            Set<MAttribute> result = new HashSet<>();
+            for (Map.Entry<MClass, Set<MAttribute>> entry : dependentsOfClass.entrySet()) {
+                if (c.isSubClassOf(entry.getKey())) {
+                    result.addAll(entry.getValue());
+                }
+            }
+            return result;
+        });
+    }
+
+    private List<MAttribute> derivedAttributesOf(MClass mclass) {
+        return derivedAttributesOfClass.computeIfAbsent(mclass, c -> {
+            List<MAttribute> result = new ArrayList<>();
+            for (MAttribute attribute : c.allAttributes()) {
+                if (attribute.isDerived()) {
+                    result.add(attribute);
+                }
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Finds the derived attributes of the model and computes what each derive expression reads,
+     * including the bodies of the operations it calls. If the latter fails, every update evaluates
+     * all the derived attributes.
+     */
+    private void loadDependencies() {
+        if (derivedAttributes != null) {
+            return;
+        }
+        derivedAttributes = new ArrayList<>();
+        for (MClass mclass : system.model().classes()) {
+            for (MAttribute attribute : mclass.attributes()) {
+                if (attribute.isDerived()) {
+                    derivedAttributes.add(attribute);
+                }
+            }
+        }
+        Map<MAttribute, Set<MAttribute>> byAttribute = new HashMap<>();
+        Map<MAssociation, Set<MAttribute>> byAssociation = new HashMap<>();
+        Map<MClass, Set<MAttribute>> byClass = new HashMap<>();
+        try {
+            for (MAttribute attribute : derivedAttributes) {
+                CoverageCalculationVisitor visitor = new CoverageCalculationVisitor(true);
+                attribute.getDeriveExpression().processWithVisitor(visitor);
+                CoverageData coverage = visitor.getCoverageData();
+                for (MAttribute read : coverage.getAttributeCoverage().keySet()) {
+                    byAttribute.computeIfAbsent(read, k -> new HashSet<>()).add(attribute);
+                }
+                for (MAssociation read : coverage.getAssociationCoverage().keySet()) {
+                    byAssociation.computeIfAbsent(read, k -> new HashSet<>()).add(attribute);
+                }
+                for (MClass read : coverage.getClassCoverage().keySet()) {
+                    byClass.computeIfAbsent(read, k -> new HashSet<>()).add(attribute);
+                }
+            }
+        } catch (RuntimeException ex) {
+            DTLogger.warn("Could not compute the dependencies of the derived attributes, "
+                    + "all of them will be updated after every change: " + ex.getMessage());
+            return;
+        }
+        dependentsOfAttribute = byAttribute;
+        dependentsOfAssociation = byAssociation;
+        dependentsOfClass = byClass;
+    }
+
+}
@@ -0,0 +1,318 @@
+package utils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A registry of the connector's metrics, which can be exposed as JMX MBeans under the "digital.twin" domain.
+ * Metrics are recorded without locks, so they can be used in the hot paths of the connector.
+ * Metric names include their unit when it is not obvious, e.g., "model.queueWaitNanos".
+ */
+@SuppressWarnings("unused")
+public class Metrics {
+
+    private static final String DOMAIN = "digital.twin";
+
+    private static final Map<String, Object> metrics = new ConcurrentHashMap<>();
+    private static volatile boolean registered = false;
+
+    /**
+     * Returns a counter, creating it if it does not exist.
+     * @param name The name of the counter.
+     * @return The counter.
+     */
+    public static Counter counter(String name) {
+        return get(name, Counter.class, Counter::new);
+    }
+
+    /**
+     * Returns a histogram, creating it if it does not exist.
+     * @param name The name of the histogram.
+     * @return The histogram.
+     */
+    public static Histogram histogram(String name) {
+        return get(name, Histogram.class, Histogram::new);
+    }
+
+    /**
+     * Returns a gauge whose value is set explicitly, creating it if it does not exist.
+     * @param name The name of the gauge.
+     * @return The gauge.
+     */
+    public static Gauge gauge(String name) {
+        return get(name, Gauge.class, () -> new Gauge(null));
+    }
+
+    /**
+     * Creates a gauge whose value is computed each time it is read, replacing any previous gauge
+     * with the same name.
+     * @param name The name of the gauge.
+     * @param supplier The function that computes the value of the gauge.
+     * @return The gauge.
+     */
+    public static Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = new Gauge(supplier);
+        Object previous = metrics.put(name, gauge);
+        if (registered) {
+            if (previous != null) {
+                unregister(name, previous);
+            }
+            register(name, gauge);
+        }
+        return gauge;
+    }
+
+    /**
+     * Registers all the metrics as MBeans in the platform MBean server. Metrics created afterwards
+     * are registered as soon as they are created.
+     */
+    public static synchronized void registerMBeans() {
+        registered = true;
+        metrics.forEach(Metrics::register);
+    }
+
+    /**
+     * Unregisters all the metrics from the platform MBean server. Their values are kept.
+     */
+    public static synchronized void unregisterMBeans() {
+        registered = false;
+        metrics.forEach(Metrics::unregister);
+    }
+
+    private static <T> T get(String name, Class<T> type, Supplier<T> factory) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            metric = metrics.computeIfAbsent(name, k -> {
+                T created = factory.get();
+                if (registered) {
+                    register(k, created);
+                }
+                return created;
+            });
+        }
+        return type.cast(metric);
+    }
+
+    private static synchronized void register(String name, Object metric) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName(name, metric);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metric, objectName);
+            }
+        } catch (JMException ex) {
+            DTLogger.error("Could not register metric " + name + ":", ex);
+        }
+    }
+
+    private static synchronized void unregister(String name, Object metric) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName(name, metric);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException ex) {
+            DTLogger.error("Could not unregister metric " + name + ":", ex);
+        }
+    }
+
+    private static ObjectName getObjectName(String name, Object metric) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + metric.getClass().getSimpleName() + ",name=" + name);
+    }
+
+    // ============================================================================================
+    // Metric types
+    // ============================================================================================
+
+    public interface CounterMXBean {
+        long getCount();
+        double getMeanRatePerSecond();
+    }
+
+    /**
+     * A monotonically increasing count of events, e.g., clock ticks.
+     */
+    public static class Counter implements CounterMXBean {
+
+        private final LongAdder count = new LongAdder();
+        private final long createdNanos = System.nanoTime();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanRatePerSecond() {
+            double seconds = (System.nanoTime() - createdNanos) / 1e9;
+            return seconds > 0 ? count.sum() / seconds : 0;
+        }
+
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+
+    /**
+     * A value that can go up and down, e.g., the size of a backlog.
+     */
+    public static class Gauge implements GaugeMXBean {
+
+        private final LongSupplier supplier;
+        private volatile long value;
+
+        private Gauge(LongSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        public void set(long value) {
+            this.value = value;
+        }
+
+        public long getValue() {
+            return supplier != null ? supplier.getAsLong() : value;
+        }
+
+    }
+
+    public interface HistogramMXBean {
+        long getCount();
+        double getMean();
+        long getMax();
+        long getP50();
+        long getP90();
+        long getP99();
+        void reset();
+    }
+
+    /**
+     * The distribution of a non-negative value, e.g., a latency in nanoseconds. Values are counted in
+     * logarithmic buckets with 8 sub-buckets per power of two, so percentiles have a relative error
+     * below 12.5%.
+     */
+    public static class Histogram implements HistogramMXBean {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int NUMBER_OF_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records a value.
+         * @param value The value to record. Negative values are recorded as 0.
+         */
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Records the nanoseconds elapsed since a given time.
+         * @param startNanos The start time, as returned by System.nanoTime().
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n > 0 ? (double) sum.sum() / n : 0;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getP50() {
+            return getPercentile(0.50);
+        }
+
+        public long getP90() {
+            return getPercentile(0.90);
+        }
+
+        public long getP99() {
+            return getPercentile(0.99);
+        }
+
+        public void reset() {
+            for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the recorded values.
+         * @param percentile The percentile, from 0 to 1.
+         * @return The largest value of the bucket where the percentile falls.
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[NUMBER_OF_BUCKETS];
+            for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return 0;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowerBound + (1L << shift) - 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+package utils;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single thread that executes every access to the USE model. Tasks are submitted from any thread
+ * through a lock-free queue and executed in order, so model accesses never run concurrently.
+ * Queued tasks are drained in batches: after each batch, an optional action (e.g., updating the
+ * derived values of the model) is executed once for all the tasks of the batch.
+ */
+public class ModelExecutor {
+
+    /**
+     * A task to execute on the model thread.
+     * @param <T> The type of the result of the task.
+     * @param <E> The type of the exception the task can throw.
+     */
+    @FunctionalInterface
+    public interface ModelTask<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private final Metrics.Histogram queueWait = Metrics.histogram("model.queueWaitNanos");
+    private final Metrics.Histogram taskTime = Metrics.histogram("model.taskNanos");
+    private final Queue<Runnable> tasks;
+    private final Runnable afterBatch;
+    private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates and starts a model executor.
+     * @param name The name of the model thread.
+     * @param afterBatch Action to execute on the model thread after each batch of tasks.
+     */
+    public ModelExecutor(String name, Runnable afterBatch) {
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.afterBatch = afterBatch;
+        this.running = true;
+        this.thread = new Thread(this::loop, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns whether the current thread is the model thread.
+     * @return true if called from a task running on this executor.
+     */
+    public boolean isModelThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Queues a task to be executed on the model thread.
+     * @param task The task to execute.
+     * @param <T> The type of the result of the task.
+     * @return A future that completes with the result of the task, or with the exception it throws.
+     */
+    public <T> CompletableFuture<T> submit(ModelTask<T, ?> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new RejectedExecutionException("Model executor is stopped"));
+            return future;
+        }
+        long submitted = System.nanoTime();
+        Runnable queued = () -> {
+            long started = System.nanoTime();
+            queueWait.record(started - submitted);
+            try {
+                future.complete(task.run());
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            }
+            taskTime.recordSince(started);
+        };
+        tasks.add(queued);
+        // If the executor has been stopped meanwhile, the model thread may have exited without seeing
+        // the task. If the task can still be removed, it will never run, so reject it
+        if (!running && tasks.remove(queued)) {
+            future.completeExceptionally(new RejectedExecutionException("Model executor is stopped"));
+            return future;
+        }
+        LockSupport.unpark(thread);
+        return future;
+    }
+
+    /**
+     * Executes a task on the model thread and waits for its result. If called from the model thread,
+     * the task is executed immediately to avoid deadlocks.
+     * @param task The task to execute.
+     * @param <T> The type of the result of the task.
+     * @param <E> The type of the exception the task can throw.
+     * @return The result of the task.
+     * @throws E The exception thrown by the task, if any.
+     */
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T call(ModelTask<T, E> task) throws E {
+        if (isModelThread()) {
+            return task.run();
+        }
+        try {
+            return submit(task).join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw (E) cause;
+            }
+        }
+    }
+
+    /**
+     * Stops the model thread after executing all the tasks that have already been queued.
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        if (!isModelThread()) {
+            thread.join();
+        }
+    }
+
+    private void loop() {
+        boolean batchPending = false;
+        while (running || !tasks.isEmpty()) {
+            Runnable task = tasks.poll();
+            if (task != null) {
+                task.run();
+                batchPending = true;
+            } else {
+                if (batchPending) {
+                    runAfterBatch();
+                    batchPending = false;
+                }
+                LockSupport.park(this);
+            }
+        }
+        if (batchPending) {
+            runAfterBatch();
+        }
+    }
+
+    private void runAfterBatch() {
+        try {
+            afterBatch.run();
+        } catch (Exception ex) {
+            DTLogger.error("Error after executing model tasks:", ex);
+        }
+    }
+
+}
@@ -13,12 +13,18 @@ import org.tzi.use.uml.sys.soil.MObjectOperationCallStatement;
 import org.tzi.use.uml.sys.soil.MStatement;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Daniel Pérez - University of Málaga
- * A collection of utility methods for USE model manipulation.
+ * A collection of utility methods for USE model manipulation. Every access to the model is executed
+ * on a single model thread, so callers from different threads never access the model concurrently.
+ * Derived values are updated lazily: mutations are recorded by a DerivedValueTracker, and only the
+ * derived values they affect are updated, once before the next read of a derived attribute or at the
+ * end of the current batch of model tasks.
  */
 @SuppressWarnings("unused")
 public class UseFacade {
@@ -26,7 +32,8 @@ public class UseFacade {
     private static final Expression[] emptyArgs = new Expression[0];
 
     private final UseSystemApi api;
-    private final ReentrantLock mutex;
+    private final ModelExecutor executor;
+    private final DerivedValueTracker derivedValues;
 
     /**
      * Sets the API instance to use for all subsequent calls to UseFacade methods.
@@ -34,11 +41,94 @@ public class UseFacade {
      */
     public UseFacade(UseSystemApi api) {
         this.api = api;
-        mutex = new ReentrantLock();
+        derivedValues = new DerivedValueTracker(api.getSystem());
+        executor = new ModelExecutor("USE model thread", this::flushDerivedValues);
     }
 
+    /**
+     * Updates the derived values of the model, e.g., after it has been modified outside this facade.
+     */
     public void updateDerivedValues() {
-        api.getSystem().state().updateDerivedValues(true);
+        executor.call(() -> {
+            derivedValues.invalidateAll();
+            flushDerivedValues();
+            return null;
+        });
+    }
+
+    // Model Thread
+    // ============================================================================================
+
+    /**
+     * Executes a task on the model thread and waits for it to finish. Calls to this facade from the
+     * task are executed immediately, so a task can group several accesses to the model.
+     * @param task The task to execute.
+     * @param <T> The type of the result of the task.
+     * @param <E> The type of the exception the task can throw.
+     * @return The result of the task.
+     * @throws E The exception thrown by the task, if any.
+     */
+    public <T, E extends Exception> T execute(ModelExecutor.ModelTask<T, E> task) throws E {
+        return executor.call(task);
+    }
+
+    /**
+     * Queues a task to be executed on the model thread without waiting for it.
+     * @param task The task to execute.
+     * @param <T> The type of the result of the task.
+     * @return A future that completes with the result of the task.
+     */
+    public <T> CompletableFuture<T> submit(ModelExecutor.ModelTask<T, ?> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Stops the model thread once all the queued tasks have been executed.
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+    }
+
+    /**
+     * Marks all the derived values of the model as outdated after modifying the model directly.
+     * Must be called from the model thread.
+     */
+    protected void markDerivedValuesPending() {
+        derivedValues.invalidateAll();
+    }
+
+    /**
+     * Returns the tracker of the changes that affect the derived values, to record the changes made
+     * to the model directly. Must be used from the model thread.
+     * @return The derived value tracker of this facade.
+     */
+    protected DerivedValueTracker getDerivedValueTracker() {
+        return derivedValues;
+    }
+
+    private void flushDerivedValues() {
+        derivedValues.update();
+    }
+
+    // Events
+    // ============================================================================================
+
+    /**
+     * Registers an object to receive USE system events (e.g., object creation). The listener must
+     * annotate its handler methods with Guava's <i>@Subscribe</i>.
+     * @param listener The listener to register.
+     */
+    public void registerEventListener(Object listener) {
+        api.getSystem().getEventBus().register(listener);
+    }
+
+    /**
+     * Unregisters an object previously registered with <i>registerEventListener</i>.
+     * @param listener The listener to unregister.
+     */
+    public void unregisterEventListener(Object listener) {
+        api.getSystem().getEventBus().unregister(listener);
     }
 
     // Object Creation and Destruction
@@ -53,14 +143,13 @@ public class UseFacade {
      */
     public MObjectState createObject(String className, String objectName)
             throws MSystemException {
-        try {
-            mutex.lock();
+        return executor.call(() -> {
             MClass mclass = api.getSystem().model().getClass(className);
             MSystemState state = api.getSystem().state();
-            return state.createObject(mclass, objectName).state(state);
-        } finally {
-            mutex.unlock();
-        }
+            MObjectState result = state.createObject(mclass, objectName).state(state);
+            derivedValues.objectCreated(result.object());
+            return result;
+        });
     }
 
     /**
@@ -69,37 +158,33 @@ public class UseFacade {
      * @throws UseApiException If some error occurs within the USE API.
      */
     public void destroyObject(MObjectState objstate) throws UseApiException {
-        try {
-            mutex.lock();
+        executor.call(() -> {
             api.deleteObjectEx(objstate.object());
-        } finally {
-            mutex.unlock();
-        }
+            derivedValues.objectDestroyed(objstate.object());
+            return null;
+        });
     }
 
     // Object Searching
     // ============================================================================================
 
     /**
-     * Returns all objects of a specific class in the USE model.
+     * Returns all objects of a specific class in the USE model. The instances are looked up in the
+     * class index of the system state, which USE keeps up to date as objects are created and
+     * destroyed, so the cost depends on the number of instances rather than on the model size.
      * @param className The name of the class whose instances to retrieve.
      * @return A list with all objects of the specified class.
      */
     public List<MObjectState> getObjectsOfClass(String className) {
-        List<MObjectState> result = new ArrayList<>();
         MClass mclass = api.getSystem().model().getClass(className);
-        try {
-            mutex.lock();
-            for (MObject o : api.getSystem().state().allObjects()) {
-                if (o.cls().allSupertypes().contains(mclass)) {
-                    MObjectState ostate = o.state(api.getSystem().state());
-                    result.add(ostate);
-                }
+        return executor.call(() -> {
+            List<MObjectState> result = new ArrayList<>();
+            MSystemState state = api.getSystem().state();
+            for (MObject o : state.objectsOfClassAndSubClasses(mclass)) {
+                result.add(o.state(state));
             }
             return result;
-        } finally {
-            mutex.unlock();
-        }
+        });
     }
 
     /**
@@ -108,20 +193,39 @@ public class UseFacade {
      * @return An instance of the given class, or null if no instances are found.
      */
     public MObjectState getAnyObjectOfClass(String className) {
-        MObjectState result = null;
         MClass mclass = api.getSystem().model().getClass(className);
-        try {
-            mutex.lock();
-            for (MObject o : api.getSystem().state().allObjects()) {
-                if (o.cls().allSupertypes().contains(mclass)) {
-                    result = (o.state(api.getSystem().state()));
-                    break;
+        return executor.call(() -> {
+            MSystemState state = api.getSystem().state();
+            Iterator<MObject> instances = state.objectsOfClassAndSubClasses(mclass).iterator();
+            return instances.hasNext() ? instances.next().state(state) : null;
+        });
+    }
+
+    /**
+     * Returns the class with a given name in the USE model.
+     * @param className The name of the class to retrieve.
+     * @return The class, or null if the model has no class named <i>className</i>.
+     */
+    public MClass getModelClass(String className) {
+        return api.getSystem().model().getClass(className);
+    }
+
+    /**
+     * Returns the current states of a collection of objects, skipping those that no longer exist.
+     * @param objects The objects whose states to retrieve.
+     * @return A list with the states of the objects that still exist in the model.
+     */
+    public List<MObjectState> getObjectStates(Collection<MObject> objects) {
+        return executor.call(() -> {
+            List<MObjectState> result = new ArrayList<>();
+            MSystemState state = api.getSystem().state();
+            for (MObject o : objects) {
+                if (o.exists(state)) {
+                    result.add(o.state(state));
                 }
             }
             return result;
-        } finally {
-            mutex.unlock();
-        }
+        });
     }
 
     // Attribute Getters
@@ -134,7 +238,7 @@ public class UseFacade {
      * @return The value of the attribute, or null if the value is not an integer.
      */
     public Integer getIntegerAttribute(MObjectState objstate, String attributeName) {
-        Value v = objstate.attributeValue(attributeName);
+        Value v = readAttribute(objstate, attributeName);
         return v instanceof IntegerValue ? ((IntegerValue) v).value() : null;
     }
 
@@ -145,7 +249,7 @@ public class UseFacade {
      * @return The value of the attribute, or null if the value is not a real number.
      */
     public Double getRealAttribute(MObjectState objstate, String attributeName) {
-        Value v = objstate.attributeValue(attributeName);
+        Value v = readAttribute(objstate, attributeName);
         return v instanceof RealValue ? ((RealValue) v).value() : null;
     }
 
@@ -156,7 +260,7 @@ public class UseFacade {
      * @return The value of the attribute, or null if the value is not a string.
      */
     public String getStringAttribute(MObjectState objstate, String attributeName) {
-        Value v = objstate.attributeValue(attributeName);
+        Value v = readAttribute(objstate, attributeName);
         return v instanceof StringValue ? ((StringValue) v).value() : null;
     }
 
@@ -167,7 +271,7 @@ public class UseFacade {
      * @return The value of the attribute, or null if the value is not a boolean value.
      */
     public Boolean getBooleanAttribute(MObjectState objstate, String attributeName) {
-        Value v = objstate.attributeValue(attributeName);
+        Value v = readAttribute(objstate, attributeName);
         return v instanceof BooleanValue ? ((BooleanValue) v).value() : null;
     }
 
@@ -178,7 +282,27 @@ public class UseFacade {
      * @return The value of the attribute.
      */
     public String getAttributeAsString(MObjectState objstate, String attributeName) {
-        return objstate.attributeValue(attributeName).toString();
+        return readAttribute(objstate, attributeName).toString();
+    }
+
+    /**
+     * Returns the value of any attribute, given its resolved handle.
+     * @param objstate The state of the object whose attribute to retrieve.
+     * @param attribute The attribute to retrieve, which must belong to the class of the object.
+     * @return The value of the attribute, as a USE value.
+     */
+    public Value getAttributeValue(MObjectState objstate, MAttribute attribute) {
+        return executor.call(() -> {
+            if (attribute.isDerived()) {
+                flushDerivedValues();
+            }
+            return objstate.attributeValue(attribute);
+        });
+    }
+
+    private Value readAttribute(MObjectState objstate, String attributeName) {
+        MAttribute attribute = objstate.object().cls().attribute(attributeName, true);
+        return getAttributeValue(objstate, attribute);
     }
 
     // Attribute Setters
@@ -191,7 +315,18 @@ public class UseFacade {
      * @param value The value to set.
      */
     public void setAttribute(MObjectState objstate, String attributeName, Object value) {
-        setAttributeAux(objstate, attributeName, objectToUseValue(value));
+        MAttribute attribute = objstate.object().cls().attribute(attributeName, true);
+        setAttributeAux(objstate, attribute, objectToUseValue(value));
+    }
+
+    /**
+     * Sets the value of an attribute, given its resolved handle.
+     * @param objstate The object whose attribute to set.
+     * @param attribute The attribute to set, which must belong to the class of the object.
+     * @param value The value to set.
+     */
+    public void setAttribute(MObjectState objstate, MAttribute attribute, Object value) {
+        setAttributeAux(objstate, attribute, objectToUseValue(value));
     }
 
     @SuppressWarnings("unchecked")
@@ -233,15 +368,12 @@ public class UseFacade {
         }
     }
 
-    private void setAttributeAux(MObjectState objstate, String attributeName, Value value) {
-        MClass mclass = objstate.object().cls();
-        MAttribute attribute = mclass.attribute(attributeName, true);
-        try {
-            mutex.lock();
+    private void setAttributeAux(MObjectState objstate, MAttribute attribute, Value value) {
+        executor.call(() -> {
             objstate.setAttributeValue(attribute, value);
-        } finally {
-            mutex.unlock();
-        }
+            derivedValues.attributeChanged(objstate.object(), attribute);
+            return null;
+        });
     }
 
     // Operation calls
@@ -285,12 +417,12 @@ public class UseFacade {
         // Create and execute statement
         MStatement stmt = new MObjectOperationCallStatement(
                 new ExpObjRef(mobject), operation, useArgs);
-        try {
-            mutex.lock();
+        return executor.call(() -> {
+            // The statement must see the derived values of the previous changes, and USE updates the
+            // derived values after executing it
+            flushDerivedValues();
             return api.getSystem().execute(stmt);
-        } finally {
-            mutex.unlock();
-        }
+        });
     }
 
 }